@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import libcore.io.IoUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads an {@link InputStream} on its own thread into a bounded ring of
+ * buffers, which the consuming thread drains at its own pace. The reader
+ * stalls once every buffer is waiting to be consumed, and the consumer stalls
+ * while no data is ready, so slow storage and slow networks only hold up
+ * their own stage.
+ */
+class BufferPipeline {
+    /** Marker queued after the last buffer, or after a read failure */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** Longest {@link #close()} waits for the reader to stop, in ms */
+    private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+
+    private final InputStream mIn;
+    /**
+     * Whether to keep reading what's available into a buffer. Decoding
+     * streams claim a byte is available until they end, so gathering from
+     * them would block until the whole buffer fills.
+     */
+    private final boolean mGather;
+    private final BufferPool mPool;
+    private final Thread mThread;
+
+    /** Buffers ready to be filled by the reader */
+    private final ArrayBlockingQueue<ByteBuffer> mEmpty;
+    /** Buffers filled by the reader, ready to be consumed */
+    private final ArrayBlockingQueue<ByteBuffer> mFilled;
+
+    /** Size of reads requested by the consumer */
+    private volatile int mReadSize;
+
+    private volatile boolean mClosed;
+    private volatile IOException mFailure;
+    private boolean mEnded;
+
+    public BufferPipeline(InputStream in, BufferPool pool, int depth, int readSize,
+            String threadName) {
+        mIn = in;
+        mGather = !(in instanceof InflaterInputStream);
+        mPool = pool;
+        mReadSize = readSize;
+        mEmpty = new ArrayBlockingQueue<>(depth);
+        mFilled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            mEmpty.add(pool.acquire(readSize));
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                onReaderStarted();
+                try {
+                    readLoop();
+                } finally {
+                    onReaderFinished();
+                }
+            }
+        }, threadName);
+    }
+
+    /**
+     * Called on the reader thread before reading starts.
+     */
+    protected void onReaderStarted() {
+    }
+
+    /**
+     * Called on the reader thread after reading finished.
+     */
+    protected void onReaderFinished() {
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Change the size of future reads. Buffers of the old size are swapped
+     * as they come around the ring.
+     */
+    public void setReadSize(int readSize) {
+        mReadSize = readSize;
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = null;
+        try {
+            while (!mClosed) {
+                buffer = mEmpty.take();
+                final int readSize = mReadSize;
+                if (buffer.capacity() != mPool.getBufferSize(readSize)) {
+                    mPool.release(buffer);
+                    buffer = mPool.acquire(readSize);
+                }
+                buffer.clear();
+
+                final int len;
+                try {
+                    len = readGathered(mIn, buffer, mGather);
+                } catch (IOException e) {
+                    mPool.release(buffer);
+                    buffer = null;
+                    if (!mClosed) {
+                        mFailure = e;
+                    }
+                    break;
+                }
+
+                if (len == -1 || mClosed) {
+                    mPool.release(buffer);
+                    buffer = null;
+                    break;
+                }
+
+                buffer.flip();
+                mFilled.put(buffer);
+                buffer = null;
+
+                // Closing may have drained the queue just before we put
+                if (mClosed) {
+                    releaseFilled();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed while waiting; nothing more to read
+            if (buffer != null) {
+                mPool.release(buffer);
+            }
+        } finally {
+            mFilled.offer(END);
+        }
+    }
+
+    private void releaseFilled() {
+        ByteBuffer buffer;
+        while ((buffer = mFilled.poll()) != null) {
+            if (buffer != END) {
+                mPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Fill the given array-backed buffer with at least one read, and then,
+     * when gathering, with whatever else is already available without
+     * blocking.
+     *
+     * @return number of bytes read, or -1 when the stream ended before any
+     *         bytes were read.
+     */
+    static int readGathered(InputStream in, ByteBuffer buffer, boolean gather)
+            throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            if (total > 0 && (!gather || in.available() <= 0)) {
+                break;
+            }
+            final int len = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (len == -1) {
+                return (total > 0) ? total : -1;
+            }
+            buffer.position(buffer.position() + len);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Return the next filled buffer, waiting up to the given timeout. The
+     * buffer must be handed back through {@link #recycle(ByteBuffer)} once
+     * consumed.
+     *
+     * @return filled buffer, or {@code null} when nothing was ready in time
+     *         or the stream has ended; see {@link #isEnded()}.
+     * @throws IOException when the reader failed.
+     */
+    public ByteBuffer poll(long timeoutMillis) throws IOException, InterruptedException {
+        if (mEnded) {
+            return null;
+        }
+        final ByteBuffer buffer = mFilled.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (buffer == END) {
+            mEnded = true;
+            final IOException failure = mFailure;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Return if all data has been consumed from the stream.
+     */
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    public void recycle(ByteBuffer buffer) {
+        if (mClosed || !mEmpty.offer(buffer)) {
+            mPool.release(buffer);
+        }
+    }
+
+    /**
+     * Stop reading, close the stream so that a reader blocked inside it
+     * returns, and return buffers to the pool. Waits a bounded time for the
+     * reader to stop, so that another pipeline can safely take over.
+     */
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+        IoUtils.closeQuietly(mIn);
+
+        ByteBuffer buffer;
+        while ((buffer = mEmpty.poll()) != null) {
+            mPool.release(buffer);
+        }
+        releaseFilled();
+
+        if (mThread.isAlive()) {
+            try {
+                mThread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Anything the reader put while stopping
+        releaseFilled();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of transfer buffers shared between download threads, so that a
+ * download doesn't allocate fresh buffers for every attempt. Buffers come in
+ * power-of-two sizes between a minimum and maximum, and idle buffers are
+ * kept up to a total number of bytes.
+ */
+class BufferPool {
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mMaxPooledBytes;
+
+    /** Idle buffers, indexed by size class */
+    @GuardedBy("this")
+    private final ArrayDeque<ByteBuffer>[] mPools;
+    @GuardedBy("this")
+    private long mPooledBytes;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minSize, int maxSize, long maxPooledBytes) {
+        mMinSize = roundUpToPowerOfTwo(minSize);
+        mMaxSize = Math.max(mMinSize, roundUpToPowerOfTwo(maxSize));
+        mMaxPooledBytes = maxPooledBytes;
+
+        final int classes = Integer.numberOfTrailingZeros(mMaxSize)
+                - Integer.numberOfTrailingZeros(mMinSize) + 1;
+        mPools = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            mPools[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(int size) {
+        final int highest = Integer.highestOneBit(Math.max(1, size));
+        return (highest == size) ? size : highest << 1;
+    }
+
+    /**
+     * Return the size of buffers handed out for the given requested size.
+     */
+    public int getBufferSize(int size) {
+        return Math.min(mMaxSize, Math.max(mMinSize, roundUpToPowerOfTwo(size)));
+    }
+
+    private int getSizeClass(int bufferSize) {
+        return Integer.numberOfTrailingZeros(bufferSize)
+                - Integer.numberOfTrailingZeros(mMinSize);
+    }
+
+    /**
+     * Return a cleared buffer of at least the given size, clamped to the
+     * pool limits, reusing a pooled one when available. Buffers are
+     * array-backed, so that streams can read straight into them.
+     */
+    public ByteBuffer acquire(int size) {
+        final int bufferSize = getBufferSize(size);
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mPools[getSizeClass(bufferSize)].pollFirst();
+            if (buffer != null) {
+                mPooledBytes -= bufferSize;
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)} to the pool.
+     * Buffers beyond the pool capacity are left for the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int bufferSize = buffer.capacity();
+        if (bufferSize != getBufferSize(bufferSize) || !buffer.hasArray()) {
+            return;
+        }
+        synchronized (this) {
+            if (mPooledBytes + bufferSize <= mMaxPooledBytes) {
+                mPools[getSizeClass(bufferSize)].addFirst(buffer);
+                mPooledBytes += bufferSize;
+            }
+        }
+    }
+
+    public synchronized int getPooledCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> pool : mPools) {
+            count += pool.size();
+        }
+        return count;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.net.ConnectivityManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks read sizes for concurrent downloads. Each read should carry roughly
+ * {@link #TARGET_READ_MILLIS} worth of data at the measured speed, bounded by
+ * what the network type can plausibly deliver, and by an equal share of a
+ * memory budget split between all active transfers.
+ */
+class BufferSizer {
+    /** Amount of data, in time at the measured speed, gathered per read */
+    private static final long TARGET_READ_MILLIS = 50;
+
+    private final int mMinSize;
+    private final long mMemoryBudget;
+    private final int mBuffersPerTransfer;
+
+    private final AtomicInteger mActive = new AtomicInteger();
+
+    /**
+     * @param minSize smallest read size handed out.
+     * @param memoryBudget bytes of buffers shared by all active transfers.
+     * @param buffersPerTransfer buffers each transfer holds at once.
+     */
+    public BufferSizer(int minSize, long memoryBudget, int buffersPerTransfer) {
+        mMinSize = minSize;
+        mMemoryBudget = memoryBudget;
+        mBuffersPerTransfer = buffersPerTransfer;
+    }
+
+    /**
+     * Register an active transfer, which reduces the share of every other
+     * transfer. Must be balanced with {@link #finishTransfer()}.
+     */
+    public void startTransfer() {
+        mActive.incrementAndGet();
+    }
+
+    public void finishTransfer() {
+        mActive.decrementAndGet();
+    }
+
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    /**
+     * Return the largest read that makes sense on the given network type.
+     */
+    static int getNetworkMaxSize(int networkType) {
+        switch (networkType) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return 256 * 1024;
+            case ConnectivityManager.TYPE_MOBILE:
+            case ConnectivityManager.TYPE_WIMAX:
+                return 64 * 1024;
+            default:
+                return 16 * 1024;
+        }
+    }
+
+    /**
+     * Return the read size to use for a transfer.
+     *
+     * @param speed measured speed in bytes per second, or 0 when unknown.
+     * @param networkType {@link ConnectivityManager} network type.
+     */
+    public int getReadSize(long speed, int networkType) {
+        final int networkMax = getNetworkMaxSize(networkType);
+        final long share = mMemoryBudget
+                / (Math.max(1, mActive.get()) * (long) Math.max(1, mBuffersPerTransfer));
+        final long max = Math.max(mMinSize, Math.min(networkMax, share));
+
+        // Without a measurement yet, start midway and let speed steer us
+        final long wanted = (speed > 0) ? speed * TARGET_READ_MILLIS / 1000 : max / 4;
+        return (int) Math.max(mMinSize, Math.min(max, wanted));
+    }
+}
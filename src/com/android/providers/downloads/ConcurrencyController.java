@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many downloads run at once, by climbing while aggregate
+ * throughput keeps rising. Each sample taken while downloads are waiting for
+ * a slot either confirms the last step up, or finds throughput plateaued and
+ * steps back down, holding there for {@link Constants#CONCURRENCY_HOLD_TIME}
+ * before probing again. Slow disk syncs halve the limit right away, since
+ * more parallel writers only make them slower.
+ * <p>
+ * Not thread safe; samples are expected from a single thread.
+ */
+class ConcurrencyController {
+    /** Longest disk sync reported by any download since the last sample, in ms */
+    private static final AtomicLong sMaxDiskLatency = new AtomicLong();
+
+    private final int mMin;
+    private final int mCeiling;
+
+    private int mLimit;
+
+    /** Limit in effect before the last change, or 0 when not probing */
+    private int mPreviousLimit;
+    /** Throughput measured at {@link #mPreviousLimit} */
+    private long mPreviousThroughput;
+    /** Time before which the limit isn't raised again */
+    private long mHoldUntil;
+
+    public ConcurrencyController(int min, int ceiling, int initial) {
+        mMin = min;
+        mCeiling = ceiling;
+        mLimit = Math.max(min, Math.min(ceiling, initial));
+    }
+
+    /**
+     * Record how long a download waited for its data to reach disk.
+     */
+    public static void recordDiskLatency(long millis) {
+        long current;
+        do {
+            current = sMaxDiskLatency.get();
+            if (millis <= current) return;
+        } while (!sMaxDiskLatency.compareAndSet(current, millis));
+    }
+
+    /**
+     * Return the longest disk sync recorded since the last call.
+     */
+    public static long drainDiskLatency() {
+        return sMaxDiskLatency.getAndSet(0);
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Adjust the limit given a sample of current conditions.
+     *
+     * @param throughput aggregate speed of all running downloads, in bytes
+     *            per second.
+     * @param diskLatency longest disk sync since the last sample, in ms.
+     * @param saturated if every slot is busy and downloads are waiting, which
+     *            is the only time a higher limit could help.
+     * @return the new limit.
+     */
+    public int onSample(long now, long throughput, long diskLatency, boolean saturated) {
+        if (diskLatency >= Constants.CONCURRENCY_MAX_DISK_LATENCY) {
+            // Disk can't keep up; back off hard and let it drain
+            mLimit = Math.max(mMin, mLimit / 2);
+            mPreviousLimit = 0;
+            mHoldUntil = now + Constants.CONCURRENCY_HOLD_TIME;
+            return mLimit;
+        }
+
+        if (!saturated) {
+            // Nothing is waiting, so this sample says nothing about more slots
+            mPreviousLimit = 0;
+            return mLimit;
+        }
+
+        if (mPreviousLimit != 0 && mPreviousLimit < mLimit) {
+            final long wanted = mPreviousThroughput
+                    + mPreviousThroughput * Constants.CONCURRENCY_MIN_GAIN_PERCENT / 100;
+            if (throughput < wanted) {
+                // Plateaued; the last slot didn't pay for itself
+                mLimit = mPreviousLimit;
+                mPreviousLimit = 0;
+                mHoldUntil = now + Constants.CONCURRENCY_HOLD_TIME;
+                return mLimit;
+            }
+        }
+
+        if (mLimit < mCeiling && now >= mHoldUntil) {
+            mPreviousLimit = mLimit;
+            mPreviousThroughput = throughput;
+            mLimit++;
+        } else {
+            mPreviousLimit = 0;
+        }
+        return mLimit;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("ConcurrencyController:");
+        pw.increaseIndent();
+        pw.printPair("mLimit", mLimit);
+        pw.printPair("mMin", mMin);
+        pw.printPair("mCeiling", mCeiling);
+        pw.printPair("mHoldUntil", mHoldUntil);
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -42,6 +42,39 @@ public class Constants {
     /** The column that is used for the downloads's ETag */
     public static final String ETAG = "etag";
 
+    /** The column that is used for the ranges already written, see {@link DownloadChunkMap} */
+    public static final String CHUNK_MAP = "chunk_map";
+
+    /** The column that is used for the content coding of the response body, if any */
+    public static final String CONTENT_ENCODING = "content_encoding";
+
+    /**
+     * The column that is used for the bytes known to be durable on disk, or
+     * -1 when unknown. Downloads never resume past this point.
+     */
+    public static final String VERIFIED_BYTES = "verified_bytes";
+
+    /**
+     * The column that is used for the priority class of the download, one
+     * of the {@code PRIORITY_} constants, or {@link #PRIORITY_DEFAULT}.
+     */
+    public static final String PRIORITY = "priority";
+
+    /**
+     * The column that is used for the time a download waiting to retry is
+     * next attempted, or 0 when not waiting.
+     */
+    public static final String NEXT_ATTEMPT = "next_attempt";
+
+    /** Priority derived from visibility: hidden downloads run in the background */
+    public static final int PRIORITY_DEFAULT = -1;
+    /** Priority of downloads the user is waiting on */
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    /** Priority of downloads an app needs, but nobody is waiting on */
+    public static final int PRIORITY_BACKGROUND = 1;
+    /** Priority of speculative downloads that may never be used */
+    public static final int PRIORITY_PREFETCH = 2;
+
     /** The column that is used for the initiating app's UID */
     public static final String UID = "uid";
 
@@ -119,12 +152,153 @@ public class Constants {
     /** The buffer size used to stream the data */
     public static final int BUFFER_SIZE = 8192;
 
+    /**
+     * Stream data through {@link BufferPool} buffers and positional channel
+     * writes instead of a per-download buffer and stream writes. Off until
+     * BufferPipelineTest#testPooledAgainstPerAttemptBuffers has been run
+     * on devices.
+     */
+    public static final boolean USE_CHANNEL_TRANSFER = false;
+
+    /** The largest buffer used when gathering reads for channel writes */
+    public static final int TRANSFER_BUFFER_MAX_SIZE = 256 * 1024;
+
+    /** The maximum number of idle bytes of transfer buffers kept around for reuse */
+    public static final long TRANSFER_BUFFER_POOL_BYTES = 1024 * 1024;
+
+    /** The memory used by transfer buffers, split between all active downloads */
+    public static final long TRANSFER_MEMORY_BUDGET = 2 * 1024 * 1024;
+
+    /** The number of buffers a download may read ahead of its disk writes */
+    public static final int TRANSFER_PIPELINE_DEPTH = 4;
+
+    /** The time a transfer waits for another network after losing its own, in ms */
+    public static final long HANDOFF_TIMEOUT = 30 * 1000;
+
+    /** The longest a handoff waits for a network change before checking again, in ms */
+    public static final long HANDOFF_POLL_INTERVAL = 500;
+
+    /** The maximum number of network handoffs within a single transfer */
+    public static final int MAX_HANDOFFS = 3;
+
+    /** The first extent of disk space claimed ahead of the write position */
+    public static final long PREALLOCATE_EXTENT_MIN = 1024 * 1024;
+
+    /** The largest extent of disk space claimed ahead of the write position */
+    public static final long PREALLOCATE_EXTENT_MAX = 64 * 1024 * 1024;
+
+    /** How destination data is made durable before progress is checkpointed */
+    public static final int DURABILITY_POLICY = DurabilityPolicy.TYPE_DEFERRED;
+
+    /** The amount of data written before a deferred sync, see {@link #DURABILITY_POLICY} */
+    public static final long DEFERRED_SYNC_BYTES = 8 * 1024 * 1024;
+
+    /** The time passed before a deferred sync, in ms, see {@link #DURABILITY_POLICY} */
+    public static final long DEFERRED_SYNC_TIME = 30 * 1000;
+
+    /**
+     * The time after which an update pass reads back every download, instead
+     * of only those recorded as changed, in ms
+     */
+    public static final long FULL_UPDATE_INTERVAL = 10 * 60 * 1000;
+
+    /** The most changed downloads read back by an update pass before reading all of them */
+    public static final int INCREMENTAL_UPDATE_MAX_IDS = 500;
+
+    /**
+     * The minimum time between update passes triggered only by progress
+     * changes, in ms. Requests arriving sooner are coalesced into one pass.
+     */
+    public static final long MIN_UPDATE_INTERVAL = 1000;
+
+    /**
+     * The time a queued download waits before being treated as one priority
+     * class higher, so that lower classes aren't starved forever, in ms
+     */
+    public static final long PRIORITY_AGING_INTERVAL = 30 * 60 * 1000;
+
+    /**
+     * Start the download with the fewest remaining bytes first among queued
+     * downloads of the same priority class and app, instead of the oldest.
+     */
+    public static final boolean SCHEDULE_SHORTEST_FIRST = true;
+
+    /** The hard ceiling on downloads running at once, however fast the link */
+    public static final int MAX_CONCURRENT_DOWNLOADS = 12;
+
+    /** The time between samples that adjust how many downloads run at once, in ms */
+    public static final long CONCURRENCY_SAMPLE_INTERVAL = 5 * 1000;
+
+    /**
+     * The minimum gain in aggregate throughput, in percent, for which one
+     * more concurrent download is kept
+     */
+    public static final int CONCURRENCY_MIN_GAIN_PERCENT = 10;
+
+    /** The time after backing off before more concurrent downloads are tried, in ms */
+    public static final long CONCURRENCY_HOLD_TIME = 60 * 1000;
+
+    /** The disk sync time beyond which concurrent downloads are halved, in ms */
+    public static final long CONCURRENCY_MAX_DISK_LATENCY = 500;
+
+    /** The maximum number of connections to a single host at once, counting segments */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * How often downloads held back by connections to their host look again,
+     * in ms, since segments can close before their download finishes
+     */
+    public static final long HOST_RECHECK_INTERVAL = 1000;
+
+    /** The consecutive failures after which a host's circuit opens */
+    public static final int HOST_CIRCUIT_FAILURES = 3;
+
+    /** The minimum time a host's circuit stays open, in ms */
+    public static final long HOST_CIRCUIT_OPEN_TIME = 60 * 1000;
+
+    /** The time before retrying a download held back while its host is probed, in ms */
+    public static final long HOST_PROBE_WAIT = 15 * 1000;
+
+    /** The time progress checkpoints are collected before being written together, in ms */
+    public static final long PROGRESS_COMMIT_INTERVAL = 1000;
+
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 65536;
 
     /** The minimum amount of time that has to elapse before the progress bar gets updated, in ms */
     public static final long MIN_PROGRESS_TIME = 2000;
 
+    /**
+     * The minimum known length of a download before it's fetched as several
+     * parallel byte ranges.
+     */
+    public static final long SEGMENT_MIN_TOTAL_BYTES = 4 * 1024 * 1024;
+
+    /** The smallest byte range that is split off into its own segment */
+    public static final long SEGMENT_MIN_BYTES = 1024 * 1024;
+
+    /** The maximum number of parallel connections used by a single download */
+    public static final int SEGMENT_MAX_COUNT = 4;
+
+    /**
+     * The maximum number of segments running beyond each download's own
+     * connection, across all downloads. Each runs on a thread of its own,
+     * outside the download executor.
+     */
+    public static final int SEGMENT_MAX_EXTRA = 8;
+
+    /**
+     * The most response body that is read and discarded to keep a persistent
+     * connection reusable, instead of closing it.
+     */
+    public static final long KEEP_ALIVE_DRAIN_BYTES = 16 * 1024;
+
+    /** The maximum number of TLS sessions kept for resumption */
+    public static final int TLS_SESSION_CACHE_SIZE = 64;
+
+    /** The time after which a cached TLS session is no longer resumed, in seconds */
+    public static final int TLS_SESSION_TIMEOUT = 30 * 60;
+
     /**
      * The number of times that the download manager will retry its network
      * operations when no progress is happening before it gives up.
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control state of a single download packed into one atomic word, so that
+ * the transfer loop can poll it with a single volatile read while other
+ * threads publish changes without taking any locks.
+ */
+class ControlState {
+    /** Owner asked to pause the download */
+    public static final int FLAG_PAUSED = 1 << 0;
+    /** Download was canceled */
+    public static final int FLAG_CANCELED = 1 << 1;
+    /** Download was deleted */
+    public static final int FLAG_DELETED = 1 << 2;
+    /** Network policy changed, so connectivity must be checked again */
+    public static final int FLAG_POLICY_DIRTY = 1 << 3;
+
+    /** Flags mirrored from the database by {@link #publish} */
+    private static final int MASK_DATABASE = FLAG_PAUSED | FLAG_CANCELED | FLAG_DELETED;
+
+    private final AtomicInteger mState = new AtomicInteger();
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Publish the latest control state read from the database, leaving other
+     * flags untouched.
+     */
+    public void publish(boolean paused, boolean canceled, boolean deleted) {
+        final int flags = (paused ? FLAG_PAUSED : 0) | (canceled ? FLAG_CANCELED : 0)
+                | (deleted ? FLAG_DELETED : 0);
+        int current;
+        do {
+            current = mState.get();
+        } while (!mState.compareAndSet(current, (current & ~MASK_DATABASE) | flags));
+    }
+
+    public void set(int flag) {
+        int current;
+        do {
+            current = mState.get();
+        } while ((current & flag) != flag && !mState.compareAndSet(current, current | flag));
+    }
+
+    public void clear(int flag) {
+        int current;
+        do {
+            current = mState.get();
+        } while ((current & flag) != 0 && !mState.compareAndSet(current, current & ~flag));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.provider.Downloads;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Record of downloads changed in {@link DownloadProvider} since the last
+ * {@link DownloadService} update pass, so that the pass only needs to read
+ * those rows back. Changes that can't be pinned to specific downloads mark
+ * everything as changed.
+ */
+class DirtyDownloads {
+    private static final DirtyDownloads sInstance = new DirtyDownloads();
+
+    /** Columns that change while data is transferred, without affecting scheduling */
+    private static final Set<String> PROGRESS_COLUMNS = new HashSet<>();
+
+    static {
+        PROGRESS_COLUMNS.add(Downloads.Impl.COLUMN_CURRENT_BYTES);
+        PROGRESS_COLUMNS.add(Downloads.Impl.COLUMN_TOTAL_BYTES);
+        PROGRESS_COLUMNS.add(Downloads.Impl.COLUMN_LAST_MODIFICATION);
+        PROGRESS_COLUMNS.add(Constants.ETAG);
+        PROGRESS_COLUMNS.add(Constants.CHUNK_MAP);
+        PROGRESS_COLUMNS.add(Constants.VERIFIED_BYTES);
+    }
+
+    @GuardedBy("this")
+    private boolean mAllChanged = true;
+    /** Downloads with changes to any columns */
+    @GuardedBy("this")
+    private HashSet<Long> mChanged = new HashSet<>();
+    /** Downloads with changes only to {@link #PROGRESS_COLUMNS} */
+    @GuardedBy("this")
+    private HashSet<Long> mProgressChanged = new HashSet<>();
+
+    public static DirtyDownloads getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return if an update of the given columns only reports progress.
+     */
+    public static boolean isProgressOnly(Collection<String> columns) {
+        return PROGRESS_COLUMNS.containsAll(columns);
+    }
+
+    public synchronized void markChanged(long id, boolean progressOnly) {
+        if (progressOnly) {
+            if (!mChanged.contains(id)) {
+                mProgressChanged.add(id);
+            }
+        } else {
+            mProgressChanged.remove(id);
+            mChanged.add(id);
+        }
+    }
+
+    public synchronized void markAllChanged() {
+        mAllChanged = true;
+    }
+
+    /**
+     * Return if any change recorded so far may affect scheduling, such as a
+     * new, deleted, or paused download, without draining it.
+     */
+    public synchronized boolean hasUrgentChanges() {
+        return mAllChanged || !mChanged.isEmpty();
+    }
+
+    /**
+     * Return all changes recorded so far, and start recording afresh.
+     */
+    public synchronized Changes drain() {
+        final Changes changes = new Changes(mAllChanged, mChanged, mProgressChanged);
+        mAllChanged = false;
+        mChanged = new HashSet<>();
+        mProgressChanged = new HashSet<>();
+        return changes;
+    }
+
+    public static class Changes {
+        /** Changes weren't limited to known downloads, so every row is suspect */
+        public final boolean all;
+        /** Downloads with changes to any columns */
+        public final Set<Long> changed;
+        /** Downloads with changes only to columns that report progress */
+        public final Set<Long> progressChanged;
+
+        public Changes(boolean all, Set<Long> changed, Set<Long> progressChanged) {
+            this.all = all;
+            this.changed = changed;
+            this.progressChanged = progressChanged;
+        }
+
+        /**
+         * Return if every change only reported progress, which can't affect
+         * whether any download should start, stop, or be scanned.
+         */
+        public boolean isProgressOnly() {
+            return !all && changed.isEmpty() && !progressChanged.isEmpty();
+        }
+
+        public Set<Long> getIds() {
+            final HashSet<Long> ids = new HashSet<>(changed);
+            ids.addAll(progressChanged);
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of byte ranges of a download that have already been written to the
+ * destination file. Ranges are kept sorted and merged, and are persisted in
+ * {@link Constants#CHUNK_MAP} as {@code "start-end,start-end"} with exclusive
+ * ends, so that a resumed download only fetches what is still missing.
+ */
+class DownloadChunkMap {
+
+    /** Half-open byte range {@code [start, end)}. */
+    public static class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getLength() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end;
+        }
+    }
+
+    private final ArrayList<Range> mRanges = new ArrayList<>();
+
+    /**
+     * Parse a chunk map previously produced by {@link #toString()}. A
+     * malformed value yields an empty map, which only costs us refetching.
+     */
+    public static DownloadChunkMap parse(String value) {
+        final DownloadChunkMap map = new DownloadChunkMap();
+        if (value == null || value.isEmpty()) {
+            return map;
+        }
+
+        try {
+            for (String range : value.split(",")) {
+                final int split = range.indexOf('-');
+                map.add(Long.parseLong(range.substring(0, split)),
+                        Long.parseLong(range.substring(split + 1)));
+            }
+        } catch (RuntimeException e) {
+            map.mRanges.clear();
+        }
+        return map;
+    }
+
+    public boolean isEmpty() {
+        return mRanges.isEmpty();
+    }
+
+    /**
+     * Record that the given range has been written, merging it with any
+     * overlapping or adjacent ranges.
+     */
+    public void add(long start, long end) {
+        if (start < 0 || end <= start) {
+            return;
+        }
+
+        int i = 0;
+        while (i < mRanges.size() && mRanges.get(i).end < start) {
+            i++;
+        }
+        while (i < mRanges.size() && mRanges.get(i).start <= end) {
+            final Range existing = mRanges.remove(i);
+            start = Math.min(start, existing.start);
+            end = Math.max(end, existing.end);
+        }
+        mRanges.add(i, new Range(start, end));
+    }
+
+    public void addAll(DownloadChunkMap other) {
+        for (Range range : other.mRanges) {
+            add(range.start, range.end);
+        }
+    }
+
+    /**
+     * Return the offset up to which data is present without any holes,
+     * starting at the given offset.
+     */
+    public long getContiguousEnd(long offset) {
+        for (Range range : mRanges) {
+            if (range.start <= offset && offset < range.end) {
+                return range.end;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Return if any written range ends beyond the given offset.
+     */
+    public boolean hasRangesAfter(long offset) {
+        return !mRanges.isEmpty() && mRanges.get(mRanges.size() - 1).end > offset;
+    }
+
+    /**
+     * Return the holes between the given offsets which still need to be
+     * fetched, in ascending order.
+     */
+    public List<Range> getMissingRanges(long from, long to) {
+        final List<Range> missing = new ArrayList<>();
+        long offset = from;
+        for (Range range : mRanges) {
+            if (range.end <= offset) {
+                continue;
+            }
+            if (range.start >= to) {
+                break;
+            }
+            if (range.start > offset) {
+                missing.add(new Range(offset, range.start));
+            }
+            offset = range.end;
+        }
+        if (offset < to) {
+            missing.add(new Range(offset, to));
+        }
+        return missing;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Range range : mRanges) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(range.start).append('-').append(range.end);
+        }
+        return builder.toString();
+    }
+}
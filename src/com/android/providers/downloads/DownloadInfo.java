@@ -32,8 +32,10 @@ import android.provider.Downloads;
 import android.provider.Downloads.Impl;
 import android.text.TextUtils;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.CharArrayWriter;
@@ -44,6 +46,7 @@ import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Details about a specific download. Fields should only be mutated by updating
@@ -54,104 +57,221 @@ public class DownloadInfo {
     // periodically pushing to provider.
 
     public static class Reader {
-        private ContentResolver mResolver;
+        /**
+         * Columns read by {@link #updateFromDatabase(DownloadInfo)}; cursors
+         * handed to a reader only need to include these.
+         */
+        public static final String[] PROJECTION = {
+                Downloads.Impl._ID,
+                Downloads.Impl.COLUMN_URI,
+                Downloads.Impl.COLUMN_NO_INTEGRITY,
+                Downloads.Impl.COLUMN_FILE_NAME_HINT,
+                Downloads.Impl._DATA,
+                Downloads.Impl.COLUMN_MIME_TYPE,
+                Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.COLUMN_VISIBILITY,
+                Downloads.Impl.COLUMN_STATUS,
+                Downloads.Impl.COLUMN_FAILED_CONNECTIONS,
+                Constants.RETRY_AFTER_X_REDIRECT_COUNT,
+                Downloads.Impl.COLUMN_LAST_MODIFICATION,
+                Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE,
+                Downloads.Impl.COLUMN_NOTIFICATION_CLASS,
+                Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS,
+                Downloads.Impl.COLUMN_COOKIE_DATA,
+                Downloads.Impl.COLUMN_USER_AGENT,
+                Downloads.Impl.COLUMN_REFERER,
+                Downloads.Impl.COLUMN_TOTAL_BYTES,
+                Downloads.Impl.COLUMN_CURRENT_BYTES,
+                Constants.ETAG,
+                Constants.CHUNK_MAP,
+                Constants.CONTENT_ENCODING,
+                Constants.VERIFIED_BYTES,
+                Constants.UID,
+                Downloads.Impl.COLUMN_MEDIA_SCANNED,
+                Downloads.Impl.COLUMN_DELETED,
+                Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
+                Downloads.Impl.COLUMN_IS_PUBLIC_API,
+                Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
+                Downloads.Impl.COLUMN_ALLOW_ROAMING,
+                Downloads.Impl.COLUMN_ALLOW_METERED,
+                Downloads.Impl.COLUMN_TITLE,
+                Downloads.Impl.COLUMN_DESCRIPTION,
+                Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
+                Downloads.Impl.COLUMN_CONTROL,
+                Constants.PRIORITY,
+                Constants.NEXT_ATTEMPT,
+        };
+
+        // Positions in PROJECTION
+        private static final int ID = 0;
+        private static final int URI = 1;
+        private static final int NO_INTEGRITY = 2;
+        private static final int FILE_NAME_HINT = 3;
+        private static final int DATA = 4;
+        private static final int MIME_TYPE = 5;
+        private static final int DESTINATION = 6;
+        private static final int VISIBILITY = 7;
+        private static final int STATUS = 8;
+        private static final int FAILED_CONNECTIONS = 9;
+        private static final int RETRY_AFTER_X_REDIRECT_COUNT = 10;
+        private static final int LAST_MODIFICATION = 11;
+        private static final int NOTIFICATION_PACKAGE = 12;
+        private static final int NOTIFICATION_CLASS = 13;
+        private static final int NOTIFICATION_EXTRAS = 14;
+        private static final int COOKIE_DATA = 15;
+        private static final int USER_AGENT = 16;
+        private static final int REFERER = 17;
+        private static final int TOTAL_BYTES = 18;
+        private static final int CURRENT_BYTES = 19;
+        private static final int ETAG = 20;
+        private static final int CHUNK_MAP = 21;
+        private static final int CONTENT_ENCODING = 22;
+        private static final int VERIFIED_BYTES = 23;
+        private static final int UID = 24;
+        private static final int MEDIA_SCANNED = 25;
+        private static final int DELETED = 26;
+        private static final int MEDIAPROVIDER_URI = 27;
+        private static final int IS_PUBLIC_API = 28;
+        private static final int ALLOWED_NETWORK_TYPES = 29;
+        private static final int ALLOW_ROAMING = 30;
+        private static final int ALLOW_METERED = 31;
+        private static final int TITLE = 32;
+        private static final int DESCRIPTION = 33;
+        private static final int BYPASS_RECOMMENDED_SIZE_LIMIT = 34;
+        private static final int CONTROL = 35;
+        private static final int PRIORITY = 36;
+        private static final int NEXT_ATTEMPT = 37;
+
         private Cursor mCursor;
 
-        public Reader(ContentResolver resolver, Cursor cursor) {
-            mResolver = resolver;
+        /** Index in {@link #mCursor} of each column in {@link #PROJECTION} */
+        private final int[] mIndex = new int[PROJECTION.length];
+
+        public Reader(Cursor cursor) {
             mCursor = cursor;
+
+            for (int i = 0; i < PROJECTION.length; i++) {
+                mIndex[i] = cursor.getColumnIndexOrThrow(PROJECTION[i]);
+            }
         }
 
-        public DownloadInfo newDownloadInfo(
-                Context context, SystemFacade systemFacade, DownloadNotifier notifier) {
-            final DownloadInfo info = new DownloadInfo(context, systemFacade, notifier);
+        public DownloadInfo newDownloadInfo(Context context, SystemFacade systemFacade,
+                DownloadNotifier notifier, ProgressCommitter committer) {
+            final DownloadInfo info = new DownloadInfo(context, systemFacade, notifier, committer);
             updateFromDatabase(info);
-            readRequestHeaders(info);
             return info;
         }
 
         public void updateFromDatabase(DownloadInfo info) {
-            info.mId = getLong(Downloads.Impl._ID);
-            info.mUri = getString(Downloads.Impl.COLUMN_URI);
-            info.mNoIntegrity = getInt(Downloads.Impl.COLUMN_NO_INTEGRITY) == 1;
-            info.mHint = getString(Downloads.Impl.COLUMN_FILE_NAME_HINT);
-            info.mFileName = getString(Downloads.Impl._DATA);
-            info.mMimeType = Intent.normalizeMimeType(getString(Downloads.Impl.COLUMN_MIME_TYPE));
-            info.mDestination = getInt(Downloads.Impl.COLUMN_DESTINATION);
-            info.mVisibility = getInt(Downloads.Impl.COLUMN_VISIBILITY);
-            info.mStatus = getInt(Downloads.Impl.COLUMN_STATUS);
-            info.mNumFailed = getInt(Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
-            int retryRedirect = getInt(Constants.RETRY_AFTER_X_REDIRECT_COUNT);
+            info.mId = getLong(ID);
+            final String uri = getString(URI);
+            if (!TextUtils.equals(uri, info.mUri)) {
+                info.mConnectedHost = null;
+            }
+            info.mUri = uri;
+            info.mNoIntegrity = getInt(NO_INTEGRITY) == 1;
+            info.mHint = getString(FILE_NAME_HINT);
+            info.mFileName = getString(DATA);
+            info.mMimeType = Intent.normalizeMimeType(getString(MIME_TYPE));
+            info.mDestination = getInt(DESTINATION);
+            info.mVisibility = getInt(VISIBILITY);
+            info.mStatus = getInt(STATUS);
+            info.mNumFailed = getInt(FAILED_CONNECTIONS);
+            int retryRedirect = getInt(RETRY_AFTER_X_REDIRECT_COUNT);
             info.mRetryAfter = retryRedirect & 0xfffffff;
-            info.mLastMod = getLong(Downloads.Impl.COLUMN_LAST_MODIFICATION);
-            info.mPackage = getString(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
-            info.mClass = getString(Downloads.Impl.COLUMN_NOTIFICATION_CLASS);
-            info.mExtras = getString(Downloads.Impl.COLUMN_NOTIFICATION_EXTRAS);
-            info.mCookies = getString(Downloads.Impl.COLUMN_COOKIE_DATA);
-            info.mUserAgent = getString(Downloads.Impl.COLUMN_USER_AGENT);
-            info.mReferer = getString(Downloads.Impl.COLUMN_REFERER);
-            info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
-            info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
-            info.mETag = getString(Constants.ETAG);
-            info.mUid = getInt(Constants.UID);
-            info.mMediaScanned = getInt(Downloads.Impl.COLUMN_MEDIA_SCANNED);
-            info.mDeleted = getInt(Downloads.Impl.COLUMN_DELETED) == 1;
-            info.mMediaProviderUri = getString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
-            info.mIsPublicApi = getInt(Downloads.Impl.COLUMN_IS_PUBLIC_API) != 0;
-            info.mAllowedNetworkTypes = getInt(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
-            info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
-            info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
-            info.mTitle = getString(Downloads.Impl.COLUMN_TITLE);
-            info.mDescription = getString(Downloads.Impl.COLUMN_DESCRIPTION);
-            info.mBypassRecommendedSizeLimit =
-                    getInt(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+            info.mLastMod = getLong(LAST_MODIFICATION);
+            info.mPackage = getString(NOTIFICATION_PACKAGE);
+            info.mClass = getString(NOTIFICATION_CLASS);
+            info.mExtras = getString(NOTIFICATION_EXTRAS);
+            info.mCookies = getString(COOKIE_DATA);
+            info.mUserAgent = getString(USER_AGENT);
+            info.mReferer = getString(REFERER);
+            info.mTotalBytes = getLong(TOTAL_BYTES);
+            info.mCurrentBytes = getLong(CURRENT_BYTES);
+            info.mETag = getString(ETAG);
+            info.mChunkMap = getString(CHUNK_MAP);
+            info.mContentEncoding = getString(CONTENT_ENCODING);
+            info.mVerifiedBytes = getLong(VERIFIED_BYTES);
+            info.mUid = getInt(UID);
+            info.mMediaScanned = getInt(MEDIA_SCANNED);
+            info.mDeleted = getInt(DELETED) == 1;
+            info.mMediaProviderUri = getString(MEDIAPROVIDER_URI);
+            info.mIsPublicApi = getInt(IS_PUBLIC_API) != 0;
+            info.mAllowedNetworkTypes = getInt(ALLOWED_NETWORK_TYPES);
+            info.mAllowRoaming = getInt(ALLOW_ROAMING) != 0;
+            info.mAllowMetered = getInt(ALLOW_METERED) != 0;
+            info.mTitle = getString(TITLE);
+            info.mDescription = getString(DESCRIPTION);
+            info.mBypassRecommendedSizeLimit = getInt(BYPASS_RECOMMENDED_SIZE_LIMIT);
+            info.mPriority = getInt(PRIORITY);
+            info.mNextAttempt = getLong(NEXT_ATTEMPT);
 
             synchronized (this) {
-                info.mControl = getInt(Downloads.Impl.COLUMN_CONTROL);
+                info.mControl = getInt(CONTROL);
             }
-        }
-
-        private void readRequestHeaders(DownloadInfo info) {
-            info.mRequestHeaders.clear();
-            Uri headerUri = Uri.withAppendedPath(
-                    info.getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
-            Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-            try {
-                int headerIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
-                int valueIndex =
-                        cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-                }
-            } finally {
-                cursor.close();
+            synchronized (info) {
+                // Network type checks depend on columns read above
+                info.mNetworkTypeCache = null;
             }
 
-            if (info.mCookies != null) {
-                addHeader(info, "Cookie", info.mCookies);
-            }
-            if (info.mReferer != null) {
-                addHeader(info, "Referer", info.mReferer);
-            }
+            info.mControlState.publish(info.mControl == Downloads.Impl.CONTROL_PAUSED,
+                    info.mStatus == Downloads.Impl.STATUS_CANCELED, info.mDeleted);
         }
 
-        private void addHeader(DownloadInfo info, String header, String value) {
-            info.mRequestHeaders.add(Pair.create(header, value));
+        /**
+         * Return the ID of the current row.
+         */
+        public long getId() {
+            return getLong(ID);
         }
 
-        private String getString(String column) {
-            int index = mCursor.getColumnIndexOrThrow(column);
-            String s = mCursor.getString(index);
+        /**
+         * Return if the current row still matches the given dormant download,
+         * so that it can stay dormant without being read back in full.
+         */
+        public boolean isUnchanged(Dormant dormant) {
+            return getInt(STATUS) == dormant.mStatus
+                    && getInt(VISIBILITY) == dormant.mVisibility
+                    && getInt(MEDIA_SCANNED) == dormant.mMediaScanned
+                    && getLong(LAST_MODIFICATION) == dormant.mLastMod
+                    && getInt(DELETED) == 0;
+        }
+
+        private String getString(int column) {
+            String s = mCursor.getString(mIndex[column]);
             return (TextUtils.isEmpty(s)) ? null : s;
         }
 
-        private Integer getInt(String column) {
-            return mCursor.getInt(mCursor.getColumnIndexOrThrow(column));
+        private int getInt(int column) {
+            return mCursor.getInt(mIndex[column]);
         }
 
-        private Long getLong(String column) {
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(column));
+        private long getLong(int column) {
+            return mCursor.getLong(mIndex[column]);
+        }
+    }
+
+    /**
+     * Compact stand-in for a download with nothing left to do, kept by
+     * {@link DownloadService} instead of a full {@link DownloadInfo}. Holds
+     * just enough to notice when the row changes, and to clean up after it
+     * when the row disappears.
+     */
+    public static class Dormant {
+        public final int mStatus;
+        public final int mVisibility;
+        public final int mMediaScanned;
+        public final long mLastMod;
+        /** File to delete when the row disappears, if it's ours to delete */
+        public final String mOwnedFileName;
+
+        private Dormant(DownloadInfo info) {
+            mStatus = info.mStatus;
+            mVisibility = info.mVisibility;
+            mMediaScanned = info.mMediaScanned;
+            mLastMod = info.mLastMod;
+            mOwnedFileName = (info.mDestination != Downloads.Impl.DESTINATION_EXTERNAL)
+                    ? info.mFileName : null;
         }
     }
 
@@ -228,6 +348,9 @@ public class DownloadInfo {
     public long mTotalBytes;
     public long mCurrentBytes;
     public String mETag;
+    public String mChunkMap;
+    public String mContentEncoding;
+    public long mVerifiedBytes;
     public int mUid;
     public int mMediaScanned;
     public boolean mDeleted;
@@ -239,10 +362,42 @@ public class DownloadInfo {
     public String mTitle;
     public String mDescription;
     public int mBypassRecommendedSizeLimit;
+    public int mPriority;
+    public long mNextAttempt;
 
     public int mFuzz;
 
-    private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
+    /**
+     * Host the last attempt ended up at after any redirects, kept in memory
+     * only, so that scheduling counts this download under the same host as
+     * {@link HostRegistry} does.
+     */
+    public volatile String mConnectedHost;
+
+    /**
+     * Results of {@link #checkIsNetworkTypeAllowed(int, long)} by network
+     * type, valid for {@link #mNetworkTypeCacheBytes} and the current
+     * {@link #sNetworkTypeCacheGeneration}.
+     */
+    @GuardedBy("this")
+    private SparseArray<NetworkState> mNetworkTypeCache;
+    @GuardedBy("this")
+    private long mNetworkTypeCacheBytes;
+    @GuardedBy("this")
+    private int mNetworkTypeCacheGeneration;
+
+    /** Bumped to drop every cached network type result, such as when settings change */
+    private static final AtomicInteger sNetworkTypeCacheGeneration = new AtomicInteger();
+
+    /**
+     * Pause, cancel and delete state published for running downloads to
+     * poll without locking.
+     */
+    public final ControlState mControlState = new ControlState();
+
+    /** Loaded on first use, since most downloads never need them again */
+    @GuardedBy("this")
+    private List<Pair<String, String>> mRequestHeaders;
 
     /**
      * Result of last {@link DownloadThread} started by
@@ -257,16 +412,58 @@ public class DownloadInfo {
     private final Context mContext;
     private final SystemFacade mSystemFacade;
     private final DownloadNotifier mNotifier;
+    private final ProgressCommitter mCommitter;
 
-    private DownloadInfo(Context context, SystemFacade systemFacade, DownloadNotifier notifier) {
+    private DownloadInfo(Context context, SystemFacade systemFacade, DownloadNotifier notifier,
+            ProgressCommitter committer) {
         mContext = context;
         mSystemFacade = systemFacade;
         mNotifier = notifier;
+        mCommitter = committer;
         mFuzz = Helpers.sRandom.nextInt(1001);
     }
 
+    @VisibleForTesting
+    boolean isHeadersLoaded() {
+        synchronized (this) {
+            return mRequestHeaders != null;
+        }
+    }
+
     public Collection<Pair<String, String>> getHeaders() {
-        return Collections.unmodifiableList(mRequestHeaders);
+        synchronized (this) {
+            if (mRequestHeaders == null) {
+                mRequestHeaders = readRequestHeaders();
+            }
+            return Collections.unmodifiableList(mRequestHeaders);
+        }
+    }
+
+    private List<Pair<String, String>> readRequestHeaders() {
+        final List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+        Uri headerUri = Uri.withAppendedPath(
+                getAllDownloadsUri(), Downloads.Impl.RequestHeaders.URI_SEGMENT);
+        Cursor cursor = mContext.getContentResolver().query(headerUri, null, null, null, null);
+        try {
+            int headerIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_HEADER);
+            int valueIndex =
+                    cursor.getColumnIndexOrThrow(Downloads.Impl.RequestHeaders.COLUMN_VALUE);
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                headers.add(Pair.create(cursor.getString(headerIndex),
+                        cursor.getString(valueIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (mCookies != null) {
+            headers.add(Pair.create("Cookie", mCookies));
+        }
+        if (mReferer != null) {
+            headers.add(Pair.create("Referer", mReferer));
+        }
+        return headers;
     }
 
     public String getUserAgent() {
@@ -308,15 +505,26 @@ public class DownloadInfo {
      * Returns the time when a download should be restarted.
      */
     public long restartTime(long now) {
-        if (mNumFailed == 0) {
-            return now;
+        if (mNextAttempt > 0) {
+            return mNextAttempt;
+        }
+        return restartTime(mLastMod, mNumFailed, mRetryAfter, mFuzz, now);
+    }
+
+    /**
+     * Returns the time when a download last modified at the given time
+     * should be restarted, given its failures and any requested delay.
+     */
+    static long restartTime(long lastMod, int numFailed, int retryAfter, int fuzz, long now) {
+        if (retryAfter > 0) {
+            return lastMod + retryAfter;
         }
-        if (mRetryAfter > 0) {
-            return mLastMod + mRetryAfter;
+        if (numFailed == 0) {
+            return now;
         }
-        return mLastMod +
+        return lastMod +
                 Constants.RETRY_FIRST_DELAY *
-                    (1000 + mFuzz) * (1 << (mNumFailed - 1));
+                    (1000 + fuzz) * (1 << (numFailed - 1));
     }
 
     /**
@@ -395,11 +603,39 @@ public class DownloadInfo {
     }
 
     /**
-     * Check if this download can proceed over the given network type.
+     * Check if this download can proceed over the given network type. Results
+     * are cached per network type until the row changes.
      * @param networkType a constant from ConnectivityManager.TYPE_*.
      * @return one of the NETWORK_* constants
      */
     private NetworkState checkIsNetworkTypeAllowed(int networkType, long totalBytes) {
+        synchronized (this) {
+            final int generation = sNetworkTypeCacheGeneration.get();
+            if (mNetworkTypeCache == null || mNetworkTypeCacheBytes != totalBytes
+                    || mNetworkTypeCacheGeneration != generation) {
+                mNetworkTypeCache = new SparseArray<>();
+                mNetworkTypeCacheBytes = totalBytes;
+                mNetworkTypeCacheGeneration = generation;
+            }
+
+            NetworkState state = mNetworkTypeCache.get(networkType);
+            if (state == null) {
+                state = computeIsNetworkTypeAllowed(networkType, totalBytes);
+                mNetworkTypeCache.put(networkType, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Drop every cached {@link #checkIsNetworkTypeAllowed(int, long)}
+     * result, so that changed size limits are picked up.
+     */
+    public static void invalidateNetworkTypeCache() {
+        sNetworkTypeCacheGeneration.incrementAndGet();
+    }
+
+    private NetworkState computeIsNetworkTypeAllowed(int networkType, long totalBytes) {
         if (mIsPublicApi) {
             final int flag = translateNetworkTypeToApiFlag(networkType);
             final boolean allowAllNetworkTypes = mAllowedNetworkTypes == ~0;
@@ -477,7 +713,7 @@ public class DownloadInfo {
                     mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);
                 }
 
-                mTask = new DownloadThread(mContext, mSystemFacade, mNotifier, this);
+                mTask = new DownloadThread(mContext, mSystemFacade, mNotifier, mCommitter, this);
                 mSubmittedTask = executor.submit(mTask);
             }
             return isReady;
@@ -556,33 +792,53 @@ public class DownloadInfo {
         pw.printPair("mIsPublicApi", mIsPublicApi);
         pw.println();
 
+        pw.printPair("mChunkMap", mChunkMap);
+        pw.printPair("mContentEncoding", mContentEncoding);
+        pw.printPair("mVerifiedBytes", mVerifiedBytes);
+        pw.println();
+
         pw.printPair("mAllowedNetworkTypes", mAllowedNetworkTypes);
         pw.printPair("mAllowRoaming", mAllowRoaming);
         pw.printPair("mAllowMetered", mAllowMetered);
+        pw.printPair("mPriority", mPriority);
+        pw.printPair("mNextAttempt", mNextAttempt);
         pw.println();
 
         pw.decreaseIndent();
     }
 
     /**
-     * Return time when this download will be ready for its next action, in
-     * milliseconds after given time.
-     *
-     * @return If {@code 0}, download is ready to proceed immediately. If
-     *         {@link Long#MAX_VALUE}, then download has no future actions.
+     * Return if this download has nothing left to do: it's finished, scanned
+     * if needed, isn't running, and doesn't show a notification. Such
+     * downloads can be kept as {@link Dormant} until their row changes.
      */
-    public long nextActionMillis(long now) {
-        if (Downloads.Impl.isStatusCompleted(mStatus)) {
-            return Long.MAX_VALUE;
-        }
-        if (mStatus != Downloads.Impl.STATUS_WAITING_TO_RETRY) {
-            return 0;
+    public boolean isDormant() {
+        synchronized (this) {
+            if (mSubmittedTask != null && !mSubmittedTask.isDone()) {
+                return false;
+            }
         }
-        long when = restartTime(now);
-        if (when <= now) {
-            return 0;
+        return Downloads.Impl.isStatusCompleted(mStatus)
+                && !mDeleted
+                && !shouldScanFile()
+                && mVisibility != DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED
+                && mVisibility != DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION;
+    }
+
+    public Dormant toDormant() {
+        return new Dormant(this);
+    }
+
+    /**
+     * Return the priority class this download is scheduled with, deriving
+     * it from visibility when none was requested.
+     */
+    public int getPriorityClass() {
+        if (mPriority != Constants.PRIORITY_DEFAULT) {
+            return mPriority;
         }
-        return when - now;
+        return (mVisibility == DownloadManager.Request.VISIBILITY_HIDDEN)
+                ? Constants.PRIORITY_BACKGROUND : Constants.PRIORITY_USER_VISIBLE;
     }
 
     /**
@@ -343,6 +343,19 @@ public class DownloadNotifier {
         return ids;
     }
 
+    /**
+     * Return the combined speed of all running downloads, in bytes per second.
+     */
+    public long getTotalSpeed() {
+        synchronized (mDownloadSpeed) {
+            long total = 0;
+            for (int i = 0; i < mDownloadSpeed.size(); i++) {
+                total += mDownloadSpeed.valueAt(i);
+            }
+            return total;
+        }
+    }
+
     public void dumpSpeeds() {
         synchronized (mDownloadSpeed) {
             for (int i = 0; i < mDownloadSpeed.size(); i++) {
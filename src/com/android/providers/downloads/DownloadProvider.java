@@ -23,10 +23,13 @@ import static android.provider.Downloads.Impl.PERMISSION_ACCESS_ALL;
 import android.app.DownloadManager;
 import android.app.DownloadManager.Request;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -37,6 +40,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Environment;
@@ -52,6 +56,7 @@ import android.text.format.DateUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
 
 import libcore.io.IoUtils;
@@ -64,7 +69,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -74,9 +81,11 @@ public final class DownloadProvider extends ContentProvider {
     /** Database filename */
     private static final String DB_NAME = "downloads.db";
     /** Current database version */
-    private static final int DB_VERSION = 109;
+    private static final int DB_VERSION = 115;
     /** Name of table in the database */
     private static final String DB_TABLE = "downloads";
+    /** Name of index on request headers by download */
+    private static final String HEADERS_INDEX = "request_headers_download_id";
 
     /** MIME type for the entire download list */
     private static final String DOWNLOAD_LIST_TYPE = "vnd.android.cursor.dir/download";
@@ -204,8 +213,13 @@ public final class DownloadProvider extends ContentProvider {
         addMapping(map, Downloads.Impl.COLUMN_USER_AGENT);
         addMapping(map, Downloads.Impl.COLUMN_VISIBILITY);
         addMapping(map, Constants.ETAG);
+        addMapping(map, Constants.CHUNK_MAP);
+        addMapping(map, Constants.CONTENT_ENCODING);
+        addMapping(map, Constants.VERIFIED_BYTES);
         addMapping(map, Constants.RETRY_AFTER_X_REDIRECT_COUNT);
         addMapping(map, Constants.UID);
+        addMapping(map, Constants.PRIORITY);
+        addMapping(map, Constants.NEXT_ATTEMPT);
     }
     private static final Map<String, String> sHeadersMap = new ArrayMap<>();
     static {
@@ -221,6 +235,20 @@ public final class DownloadProvider extends ContentProvider {
     /** The database that lies underneath this content provider */
     private SQLiteOpenHelper mOpenHelper = null;
 
+    /**
+     * Downloads changed by the batch being applied on the current thread,
+     * whose notifications are held until the batch commits. Contains
+     * {@link #ALL_CHANGED} when changes weren't limited to single downloads.
+     */
+    private final ThreadLocal<HashSet<Long>> mBatchChanges = new ThreadLocal<>();
+
+    private static final long ALL_CHANGED = -1;
+
+    /** Precompiled update of the columns in {@link ProgressCommitter.Checkpoint} */
+    @GuardedBy("mCheckpointLock")
+    private SQLiteStatement mCheckpointStatement;
+    private final Object mCheckpointLock = new Object();
+
     /** List of uids that can access the downloads */
     private int mSystemUid = -1;
     private int mDefContainerUid = -1;
@@ -338,6 +366,33 @@ public final class DownloadProvider extends ContentProvider {
                             "BOOLEAN NOT NULL DEFAULT 0");
                     break;
 
+                case 110:
+                    addColumn(db, DB_TABLE, Constants.CHUNK_MAP, "TEXT");
+                    break;
+
+                case 111:
+                    addColumn(db, DB_TABLE, Constants.CONTENT_ENCODING, "TEXT");
+                    break;
+
+                case 112:
+                    addColumn(db, DB_TABLE, Constants.VERIFIED_BYTES,
+                            "INTEGER NOT NULL DEFAULT -1");
+                    break;
+
+                case 113:
+                    createHeadersIndex(db);
+                    break;
+
+                case 114:
+                    addColumn(db, DB_TABLE, Constants.PRIORITY,
+                            "INTEGER NOT NULL DEFAULT " + Constants.PRIORITY_DEFAULT);
+                    break;
+
+                case 115:
+                    addColumn(db, DB_TABLE, Constants.NEXT_ATTEMPT,
+                            "INTEGER NOT NULL DEFAULT 0");
+                    break;
+
                 default:
                     throw new IllegalStateException("Don't know how to upgrade to " + version);
             }
@@ -440,6 +495,16 @@ public final class DownloadProvider extends ContentProvider {
                        Downloads.Impl.RequestHeaders.COLUMN_VALUE + " TEXT NOT NULL" +
                        ");");
         }
+
+        /**
+         * Index request headers by download, since they're looked up and
+         * deleted one download at a time.
+         */
+        private void createHeadersIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + HEADERS_INDEX + " ON "
+                    + Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE + "("
+                    + Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + ")");
+        }
     }
 
     /**
@@ -628,6 +693,7 @@ public final class DownloadProvider extends ContentProvider {
         }
         // copy the control column as is
         copyInteger(Downloads.Impl.COLUMN_CONTROL, values, filteredValues);
+        copyInteger(Constants.PRIORITY, values, filteredValues);
 
         /*
          * requests coming from
@@ -723,6 +789,7 @@ public final class DownloadProvider extends ContentProvider {
         }
 
         insertRequestHeaders(db, rowID, values);
+        DirtyDownloads.getInstance().markChanged(rowID, false);
 
         final String callingPackage = getPackageForUid(Binder.getCallingUid());
         if (callingPackage == null) {
@@ -831,6 +898,13 @@ public final class DownloadProvider extends ContentProvider {
                     Request.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION);
         }
 
+        enforceAllowedValues(values, Constants.PRIORITY,
+                null,
+                Constants.PRIORITY_DEFAULT,
+                Constants.PRIORITY_USER_VISIBLE,
+                Constants.PRIORITY_BACKGROUND,
+                Constants.PRIORITY_PREFETCH);
+
         // remove the rest of the columns that are allowed (with any value)
         values.remove(Downloads.Impl.COLUMN_URI);
         values.remove(Downloads.Impl.COLUMN_TITLE);
@@ -1056,6 +1130,18 @@ public final class DownloadProvider extends ContentProvider {
             copyString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, values, filteredValues);
             copyString(Downloads.Impl.COLUMN_DESCRIPTION, values, filteredValues);
             copyInteger(Downloads.Impl.COLUMN_DELETED, values, filteredValues);
+
+            // Queued downloads are reordered on the next update pass
+            if (values.containsKey(Constants.PRIORITY)) {
+                i = values.getAsInteger(Constants.PRIORITY);
+                enforceAllowedValues(values, Constants.PRIORITY,
+                        Constants.PRIORITY_DEFAULT,
+                        Constants.PRIORITY_USER_VISIBLE,
+                        Constants.PRIORITY_BACKGROUND,
+                        Constants.PRIORITY_PREFETCH);
+                filteredValues.put(Constants.PRIORITY, i);
+                startService = true;
+            }
         } else {
             filteredValues = values;
             String filename = values.getAsString(Downloads.Impl._DATA);
@@ -1079,6 +1165,17 @@ public final class DownloadProvider extends ContentProvider {
             if (isRestart || isUserBypassingSizeLimit) {
                 startService = true;
             }
+
+            // Any written ranges are meaningless once progress is reset
+            final Long currentBytes = values.getAsLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
+            if (currentBytes != null && currentBytes == 0) {
+                if (!values.containsKey(Constants.CHUNK_MAP)) {
+                    values.putNull(Constants.CHUNK_MAP);
+                }
+                if (!values.containsKey(Constants.VERIFIED_BYTES)) {
+                    values.put(Constants.VERIFIED_BYTES, -1);
+                }
+            }
         }
 
         int match = sURIMatcher.match(uri);
@@ -1093,6 +1190,9 @@ public final class DownloadProvider extends ContentProvider {
                  } else {
                      count = 0;
                  }
+                if (count > 0) {
+                    markChanged(uri, match, filteredValues);
+                }
                 break;
 
             default:
@@ -1108,6 +1208,119 @@ public final class DownloadProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Apply all operations in a single transaction, and notify of all their
+     * changes once it commits, instead of once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final HashSet<Long> changes = new HashSet<>();
+        mBatchChanges.set(changes);
+        try {
+            db.beginTransaction();
+            try {
+                final ContentProviderResult[] results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+                return results;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mBatchChanges.remove();
+
+            if (changes.size() == 1 && !changes.contains(ALL_CHANGED)) {
+                notifyContentChanged(changes.iterator().next());
+            } else if (!changes.isEmpty()) {
+                notifyContentChanged(null);
+            }
+        }
+    }
+
+    /**
+     * Write progress checkpoints of downloads running in our process in a
+     * single transaction. Uses a precompiled statement instead of the
+     * filtering and query building of {@link #update}, since the values are
+     * trusted, but notifies of changes the same way.
+     *
+     * @return the number of rows updated by each checkpoint.
+     */
+    int[] writeCheckpoints(List<ProgressCommitter.Checkpoint> checkpoints) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int[] counts = new int[checkpoints.size()];
+        int changed = 0;
+        long changedId = -1;
+
+        synchronized (mCheckpointLock) {
+            if (mCheckpointStatement == null) {
+                mCheckpointStatement = db.compileStatement("UPDATE " + DB_TABLE + " SET "
+                        + Downloads.Impl.COLUMN_CURRENT_BYTES + "=?, "
+                        + Downloads.Impl.COLUMN_TOTAL_BYTES + "=?, "
+                        + Constants.ETAG + "=?, "
+                        + Constants.CHUNK_MAP + "=?, "
+                        + Constants.VERIFIED_BYTES + "=?, "
+                        + Downloads.Impl.COLUMN_LAST_MODIFICATION + "=? "
+                        + "WHERE " + _ID + "=? AND " + Downloads.Impl.COLUMN_DELETED + "=0");
+            }
+
+            final SQLiteStatement statement = mCheckpointStatement;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < counts.length; i++) {
+                    final ProgressCommitter.Checkpoint checkpoint = checkpoints.get(i);
+                    statement.bindLong(1, checkpoint.currentBytes);
+                    statement.bindLong(2, checkpoint.totalBytes);
+                    bindStringOrNull(statement, 3, checkpoint.eTag);
+                    bindStringOrNull(statement, 4, checkpoint.chunkMap);
+                    statement.bindLong(5, checkpoint.verifiedBytes);
+                    statement.bindLong(6, checkpoint.lastModified);
+                    statement.bindLong(7, checkpoint.id);
+                    counts[i] = statement.executeUpdateDelete();
+                    if (counts[i] > 0) {
+                        DirtyDownloads.getInstance().markChanged(checkpoint.id, true);
+                        changed++;
+                        changedId = checkpoint.id;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                statement.clearBindings();
+                db.endTransaction();
+            }
+        }
+
+        // Only rows that were actually written changed, as with update()
+        if (changed == 1) {
+            notifyContentChanged(changedId);
+        } else if (changed > 1) {
+            notifyContentChanged(null);
+        }
+        return counts;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Record which downloads an update changed, for the next update pass of
+     * {@link DownloadService}.
+     */
+    private void markChanged(Uri uri, int uriMatch, ContentValues values) {
+        final DirtyDownloads dirty = DirtyDownloads.getInstance();
+        if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
+            dirty.markChanged(Long.parseLong(getDownloadIdFromUri(uri)),
+                    DirtyDownloads.isProgressOnly(values.keySet()));
+        } else {
+            dirty.markAllChanged();
+        }
+    }
+
     /**
      * Notify of a change through both URIs (/my_downloads and /all_downloads)
      * @param uri either URI for the changed download(s)
@@ -1118,6 +1331,20 @@ public final class DownloadProvider extends ContentProvider {
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
         }
+
+        final HashSet<Long> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(downloadId != null ? downloadId : ALL_CHANGED);
+            return;
+        }
+        notifyContentChanged(downloadId);
+    }
+
+    /**
+     * Notify of a change to a single download, or to all downloads when the
+     * given ID is null.
+     */
+    private void notifyContentChanged(Long downloadId) {
         for (Uri uriToNotify : BASE_URIS) {
             if (downloadId != null) {
                 uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
@@ -1212,6 +1439,7 @@ public final class DownloadProvider extends ContentProvider {
                 try (Cursor cursor = qb.query(db, null, where, whereArgs, null, null, null)) {
                     while (cursor.moveToNext()) {
                         final long id = cursor.getLong(0);
+                        DirtyDownloads.getInstance().markChanged(id, false);
                         revokeAllDownloadsPermission(id);
                         DownloadStorageProvider.onDownloadProviderDelete(getContext(), id);
 
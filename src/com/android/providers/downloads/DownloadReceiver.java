@@ -33,6 +33,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.provider.Downloads;
 import android.text.TextUtils;
 import android.util.Log;
@@ -74,7 +75,11 @@ public class DownloadReceiver extends BroadcastReceiver {
                     .getSystemService(Context.CONNECTIVITY_SERVICE);
             final NetworkInfo info = connManager.getActiveNetworkInfo();
             if (info != null && info.isConnected()) {
-                startService(context);
+                NetworkChangeStats.getInstance().onNetworkChanged(
+                        SystemClock.elapsedRealtime());
+                final Intent change = new Intent(ConnectivityManager.CONNECTIVITY_ACTION);
+                change.setClass(context, DownloadService.class);
+                context.startService(change);
             }
 
         } else if (Intent.ACTION_UID_REMOVED.equals(action)) {
@@ -88,7 +93,9 @@ public class DownloadReceiver extends BroadcastReceiver {
             });
 
         } else if (Constants.ACTION_RETRY.equals(action)) {
-            startService(context);
+            final Intent retry = new Intent(Constants.ACTION_RETRY);
+            retry.setClass(context, DownloadService.class);
+            context.startService(retry);
 
         } else if (Constants.ACTION_OPEN.equals(action)
                 || Constants.ACTION_LIST.equals(action)
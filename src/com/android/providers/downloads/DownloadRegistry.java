@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing map from download ID to value, keyed by primitive
+ * {@code long} so that lookups don't box. Each entry carries the generation
+ * in which it was last seen, which lets an update pass find stale entries
+ * without copying the key set: start a generation, {@link #touch(long)}
+ * every row read back, then {@link #removeStale(StaleCallback)}.
+ * <p>
+ * Removed entries leave a tombstone until the next rehash, so entries can be
+ * removed while iterating {@link #values()}. Not thread safe; callers must
+ * provide their own locking.
+ */
+class DownloadRegistry<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    /** Marks a slot whose entry was removed, keeping probe chains intact */
+    private static final Object REMOVED = new Object();
+
+    public interface StaleCallback<V> {
+        void onStale(long id, V value);
+    }
+
+    private long[] mKeys;
+    /** Value of each slot; null when never used, {@link #REMOVED} when removed */
+    private Object[] mValues;
+    private int[] mGenerations;
+
+    /** Live entries */
+    private int mSize;
+    /** Live entries plus tombstones */
+    private int mUsed;
+    private int mGeneration;
+    private int mModCount;
+
+    private final Values mValuesView = new Values();
+
+    public DownloadRegistry() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mGenerations = new int[capacity];
+        mUsed = mSize;
+    }
+
+    private static int hash(long id, int mask) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Return the slot holding the given ID, or -1 if absent.
+     */
+    private int find(long id) {
+        final int mask = mKeys.length - 1;
+        for (int i = hash(id, mask);; i = (i + 1) & mask) {
+            final Object value = mValues[i];
+            if (value == null) {
+                return -1;
+            } else if (value != REMOVED && mKeys[i] == id) {
+                return i;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long id) {
+        return find(id) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long id) {
+        final int i = find(id);
+        return (i >= 0) ? (V) mValues[i] : null;
+    }
+
+    /**
+     * Map the given ID to a value, stamping it as seen in the current
+     * generation.
+     *
+     * @return the previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long id, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        final int existing = find(id);
+        if (existing >= 0) {
+            final V old = (V) mValues[existing];
+            mValues[existing] = value;
+            mGenerations[existing] = mGeneration;
+            return old;
+        }
+
+        // Keep at most half the slots in use, so probe chains stay short
+        if ((mUsed + 1) * 2 > mKeys.length) {
+            rehash((mSize + 1) * 4 > mKeys.length ? mKeys.length * 2 : mKeys.length);
+        }
+
+        final int mask = mKeys.length - 1;
+        int i = hash(id, mask);
+        while (mValues[i] != null && mValues[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (mValues[i] == null) {
+            mUsed++;
+        }
+        mKeys[i] = id;
+        mValues[i] = value;
+        mGenerations[i] = mGeneration;
+        mSize++;
+        mModCount++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long id) {
+        final int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        final V old = (V) mValues[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        mValues[i] = REMOVED;
+        mSize--;
+        mModCount++;
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int[] generations = mGenerations;
+        allocate(Math.max(capacity, MIN_CAPACITY));
+
+        final int mask = mKeys.length - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] != null && values[j] != REMOVED) {
+                int i = hash(keys[j], mask);
+                while (mValues[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = keys[j];
+                mValues[i] = values[j];
+                mGenerations[i] = generations[j];
+            }
+        }
+        mModCount++;
+    }
+
+    /**
+     * Start a new generation. Entries not touched or put from now on are
+     * considered stale by {@link #removeStale(StaleCallback)}.
+     */
+    public void nextGeneration() {
+        mGeneration++;
+    }
+
+    /**
+     * Stamp the given ID as seen in the current generation.
+     *
+     * @return false if the ID isn't present.
+     */
+    public boolean touch(long id) {
+        final int i = find(id);
+        if (i >= 0) {
+            mGenerations[i] = mGeneration;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return if the given ID is present, but wasn't seen in the current
+     * generation.
+     */
+    public boolean isStale(long id) {
+        final int i = find(id);
+        return i >= 0 && mGenerations[i] != mGeneration;
+    }
+
+    /**
+     * Remove every entry not seen in the current generation, reporting each
+     * one to the given callback after it's removed.
+     */
+    @SuppressWarnings("unchecked")
+    public void removeStale(StaleCallback<V> callback) {
+        for (int i = 0; i < mValues.length; i++) {
+            final Object value = mValues[i];
+            if (value != null && value != REMOVED && mGenerations[i] != mGeneration) {
+                removeAt(i);
+                callback.onStale(mKeys[i], (V) value);
+            }
+        }
+    }
+
+    /**
+     * Return the IDs of all entries, in ascending order.
+     */
+    public long[] keys() {
+        final long[] keys = new long[mSize];
+        int n = 0;
+        for (int i = 0; i < mValues.length; i++) {
+            if (mValues[i] != null && mValues[i] != REMOVED) {
+                keys[n++] = mKeys[i];
+            }
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Return a live view of all values. Its iterator supports removal.
+     */
+    public AbstractCollection<V> values() {
+        return mValuesView;
+    }
+
+    private class Values extends AbstractCollection<V> {
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValuesIterator();
+        }
+    }
+
+    private class ValuesIterator implements Iterator<V> {
+        private int mNext = -1;
+        private int mLast = -1;
+        private int mExpectedModCount = mModCount;
+
+        ValuesIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                mNext++;
+            } while (mNext < mValues.length
+                    && (mValues[mNext] == null || mValues[mNext] == REMOVED));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mValues.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            advance();
+            return (V) mValues[mLast];
+        }
+
+        @Override
+        public void remove() {
+            if (mLast < 0) {
+                throw new IllegalStateException();
+            }
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(mLast);
+            mLast = -1;
+            mExpectedModCount = mModCount;
+        }
+    }
+}
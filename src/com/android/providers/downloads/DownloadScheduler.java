@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the download executor, which hands out queued downloads by
+ * priority instead of in the order they were submitted. Downloads are
+ * ordered by:
+ * <ol>
+ * <li>Priority class, see {@link Constants#PRIORITY}, raised by one class for
+ * every {@link Constants#PRIORITY_AGING_INTERVAL} spent waiting.
+ * <li>Fairness between apps: the UID with the fewest running downloads, and
+ * then the one served longest ago.
+ * <li>Optionally, fewest remaining bytes first.
+ * <li>Submission order.
+ * </ol>
+ * Downloads are judged by their current state each time one is handed out,
+ * so priority changes apply to already queued downloads. Downloads whose
+ * host already has {@link Constants#MAX_CONNECTIONS_PER_HOST} downloads
+ * running, or as many connections open in {@link HostRegistry}, stay queued
+ * until those go away.
+ */
+class DownloadScheduler extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * Download that can be ordered by the scheduler.
+     */
+    public interface Prioritized {
+        /** Return one of the {@code Constants.PRIORITY_} classes */
+        int getPriorityClass();
+        int getUid();
+        /** Return the bytes left to transfer, or {@link Long#MAX_VALUE} when unknown */
+        long getRemainingBytes();
+        /**
+         * Return the lowercase host to connect to, after any redirects seen
+         * earlier, or null when unknown
+         */
+        String getHost();
+    }
+
+    /**
+     * Task created by the executor for each submitted download, remembering
+     * what it runs so that it can be ordered.
+     */
+    public static class Task<T> extends FutureTask<T> {
+        final Prioritized mSource;
+        long mEnqueueTime;
+        int mSequence;
+        /** Host counted as running while this task runs */
+        String mHost;
+
+        public Task(Runnable runnable, T result) {
+            super(runnable, result);
+            mSource = (runnable instanceof Prioritized) ? (Prioritized) runnable : null;
+        }
+    }
+
+    private final SystemFacade mSystemFacade;
+    private final boolean mShortestFirst;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    @GuardedBy("mLock")
+    private final ArrayList<Runnable> mQueue = new ArrayList<>();
+
+    /** Number of running downloads of each UID */
+    @GuardedBy("mLock")
+    private final SparseIntArray mRunning = new SparseIntArray();
+    /** Sequence number of the download most recently started for each UID */
+    @GuardedBy("mLock")
+    private final SparseIntArray mLastServed = new SparseIntArray();
+
+    /** Number of running downloads to each host */
+    @GuardedBy("mLock")
+    private final HashMap<String, Integer> mRunningHosts = new HashMap<>();
+
+    @GuardedBy("mLock")
+    private int mSequence;
+
+    /** Set when the last selection held back a download for connections alone */
+    @GuardedBy("mLock")
+    private boolean mHeldByConnections;
+
+    public DownloadScheduler(SystemFacade systemFacade, boolean shortestFirst) {
+        mSystemFacade = systemFacade;
+        mShortestFirst = shortestFirst;
+    }
+
+    /**
+     * Record that the given task started running, whether or not it passed
+     * through this queue.
+     */
+    public void onStarted(Runnable r) {
+        if (!(r instanceof Task)) return;
+        final Task<?> task = (Task<?>) r;
+        if (task.mSource == null) return;
+
+        mLock.lock();
+        try {
+            final int uid = task.mSource.getUid();
+            mRunning.put(uid, mRunning.get(uid) + 1);
+            mLastServed.put(uid, ++mSequence);
+
+            task.mHost = task.mSource.getHost();
+            if (task.mHost != null) {
+                mRunningHosts.put(task.mHost, getRunningLocked(task.mHost) + 1);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Record that the given task, earlier passed to
+     * {@link #onStarted(Runnable)}, finished running.
+     */
+    public void onFinished(Runnable r) {
+        if (!(r instanceof Task)) return;
+        final Task<?> task = (Task<?>) r;
+        if (task.mSource == null) return;
+
+        mLock.lock();
+        try {
+            final int uid = task.mSource.getUid();
+            final int running = mRunning.get(uid) - 1;
+            if (running > 0) {
+                mRunning.put(uid, running);
+            } else {
+                mRunning.delete(uid);
+            }
+
+            if (task.mHost != null) {
+                final int hostRunning = getRunningLocked(task.mHost) - 1;
+                if (hostRunning > 0) {
+                    mRunningHosts.put(task.mHost, hostRunning);
+                } else {
+                    mRunningHosts.remove(task.mHost);
+                }
+                task.mHost = null;
+
+                // Downloads held back for this host may go now
+                mNotEmpty.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private int getRunningLocked(String host) {
+        final Integer running = mRunningHosts.get(host);
+        return (running != null) ? running : 0;
+    }
+
+    /**
+     * Return if the given queued task must wait for its host to free up,
+     * either because enough downloads to it are running here, or because
+     * enough connections to it are open, including segments and downloads
+     * redirected there.
+     */
+    @GuardedBy("mLock")
+    private boolean isHostSaturatedLocked(Runnable r) {
+        if (!(r instanceof Task)) return false;
+        final Task<?> task = (Task<?>) r;
+        if (task.mSource == null) return false;
+        final String host = task.mSource.getHost();
+        if (host == null) return false;
+        if (getRunningLocked(host) >= Constants.MAX_CONNECTIONS_PER_HOST) {
+            return true;
+        }
+        if (HostRegistry.getInstance().getActive(host) >= Constants.MAX_CONNECTIONS_PER_HOST) {
+            // Connections can close without any task finishing to wake us
+            mHeldByConnections = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the effective priority class of the given task, after aging.
+     */
+    @GuardedBy("mLock")
+    private int getEffectiveClass(Task<?> task, long now) {
+        final int priority = task.mSource.getPriorityClass();
+        final long waited = Math.max(0, now - task.mEnqueueTime);
+        return (int) Math.max(Constants.PRIORITY_USER_VISIBLE,
+                priority - waited / Constants.PRIORITY_AGING_INTERVAL);
+    }
+
+    /**
+     * Compare two queued tasks, returning a negative number when the first
+     * should start before the second.
+     */
+    @GuardedBy("mLock")
+    private int compareLocked(Runnable a, Runnable b, long now) {
+        final Task<?> ta = (a instanceof Task) ? (Task<?>) a : null;
+        final Task<?> tb = (b instanceof Task) ? (Task<?>) b : null;
+
+        // Work we don't know how to order keeps its place ahead of downloads
+        final boolean knownA = ta != null && ta.mSource != null;
+        final boolean knownB = tb != null && tb.mSource != null;
+        if (!knownA || !knownB) {
+            return (knownA ? 1 : 0) - (knownB ? 1 : 0);
+        }
+
+        int res = Integer.compare(getEffectiveClass(ta, now), getEffectiveClass(tb, now));
+        if (res != 0) return res;
+
+        final int uidA = ta.mSource.getUid();
+        final int uidB = tb.mSource.getUid();
+        if (uidA != uidB) {
+            res = Integer.compare(mRunning.get(uidA), mRunning.get(uidB));
+            if (res != 0) return res;
+            res = Integer.compare(mLastServed.get(uidA), mLastServed.get(uidB));
+            if (res != 0) return res;
+        }
+
+        if (mShortestFirst) {
+            res = Long.compare(ta.mSource.getRemainingBytes(), tb.mSource.getRemainingBytes());
+            if (res != 0) return res;
+        }
+
+        return Integer.compare(ta.mSequence, tb.mSequence);
+    }
+
+    /**
+     * Return the index of the task that should start next, or -1 if none
+     * can start.
+     */
+    @GuardedBy("mLock")
+    private int selectLocked() {
+        final long now = mSystemFacade.currentTimeMillis();
+        mHeldByConnections = false;
+        int best = -1;
+        for (int i = 0; i < mQueue.size(); i++) {
+            final Runnable r = mQueue.get(i);
+            if (isHostSaturatedLocked(r)) continue;
+            if (best == -1 || compareLocked(r, mQueue.get(best), now) < 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @GuardedBy("mLock")
+    private Runnable dequeueLocked() {
+        final int index = selectLocked();
+        return (index >= 0) ? mQueue.remove(index) : null;
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+
+        mLock.lock();
+        try {
+            if (r instanceof Task) {
+                final Task<?> task = (Task<?>) r;
+                task.mEnqueueTime = mSystemFacade.currentTimeMillis();
+                task.mSequence = mSequence++;
+            }
+            mQueue.add(r);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return dequeueLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            int index;
+            while ((index = selectLocked()) < 0) {
+                if (mHeldByConnections) {
+                    mNotEmpty.await(Constants.HOST_RECHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                } else {
+                    mNotEmpty.await();
+                }
+            }
+            return mQueue.remove(index);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            int index;
+            while ((index = selectLocked()) < 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                if (mHeldByConnections) {
+                    final long wait = Math.min(nanos,
+                            TimeUnit.MILLISECONDS.toNanos(Constants.HOST_RECHECK_INTERVAL));
+                    nanos -= wait - mNotEmpty.awaitNanos(wait);
+                } else {
+                    nanos = mNotEmpty.awaitNanos(nanos);
+                }
+            }
+            return mQueue.remove(index);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            final int index = selectLocked();
+            return (index >= 0) ? mQueue.get(index) : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            return mQueue.remove(o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        mLock.lock();
+        try {
+            // Drained tasks won't run here, so hosts don't hold them back
+            int n = 0;
+            while (n < maxElements && !mQueue.isEmpty()) {
+                c.add(mQueue.remove(0));
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Return an iterator over a snapshot of the queue, in no particular
+     * order. Removal goes through to the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final Iterator<Runnable> snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ArrayList<>(mQueue).iterator();
+        } finally {
+            mLock.unlock();
+        }
+
+        return new Iterator<Runnable>() {
+            private Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                mLast = snapshot.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                DownloadScheduler.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+/**
+ * Byte range of a download that is fetched over its own connection and
+ * written at its own offset in the destination file. A segment only has a
+ * single writer, but its end may shrink at any time when another segment
+ * steals its tail.
+ */
+class DownloadSegment {
+    public final int index;
+    public final long start;
+
+    /** Offset up to which data has been written. */
+    private long mCurrent;
+    /** Exclusive end of this range. */
+    private long mEnd;
+    /** Bytes handed out by {@link #reserve(int)} but not yet committed. */
+    private int mInFlight;
+
+    public DownloadSegment(int index, long start, long end) {
+        this.index = index;
+        this.start = start;
+        mCurrent = start;
+        mEnd = end;
+    }
+
+    public synchronized long getCurrent() {
+        return mCurrent;
+    }
+
+    public synchronized long getEnd() {
+        return mEnd;
+    }
+
+    public synchronized long getRemaining() {
+        return mEnd - mCurrent;
+    }
+
+    public synchronized long getTransferred() {
+        return mCurrent - start;
+    }
+
+    public synchronized boolean isFinished() {
+        return mCurrent >= mEnd;
+    }
+
+    /**
+     * Reserve up to the requested number of bytes to be written at
+     * {@link #getCurrent()}, returning how many may actually be written before
+     * reaching the end of this segment. Reserved bytes can't be stolen.
+     */
+    public synchronized int reserve(int len) {
+        mInFlight = (int) Math.max(0, Math.min(len, mEnd - mCurrent));
+        return mInFlight;
+    }
+
+    /**
+     * Record that bytes previously returned by {@link #reserve(int)} have
+     * been written to disk.
+     */
+    public synchronized void commit(int len) {
+        if (len > mInFlight) {
+            throw new IllegalStateException("Committed " + len + " but reserved " + mInFlight);
+        }
+        mCurrent += len;
+        mInFlight = 0;
+    }
+
+    /**
+     * Return offset where the remaining bytes of this segment would be split
+     * in half, or {@code -1} if the halves would be smaller than the given
+     * minimum size.
+     */
+    public synchronized long findSplitOffset(long minBytes) {
+        final long remaining = mEnd - (mCurrent + mInFlight);
+        if (remaining < minBytes * 2) {
+            return -1;
+        }
+        return mEnd - (remaining / 2);
+    }
+
+    /**
+     * Shrink this segment to end at the given offset, handing the tail over
+     * to a new segment. Fails when this segment has already written past the
+     * split point, or when its end moved since the split was planned.
+     *
+     * @return the new tail segment, or {@code null} if the split failed.
+     */
+    public synchronized DownloadSegment splitAt(int newIndex, long offset, long expectedEnd) {
+        if (mEnd != expectedEnd || offset <= mCurrent + mInFlight || offset >= mEnd) {
+            return null;
+        }
+        final DownloadSegment tail = new DownloadSegment(newIndex, offset, mEnd);
+        mEnd = offset;
+        return tail;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadSegment{index=" + index + ", start=" + start + ", current=" + mCurrent
+                + ", end=" + mEnd + "}";
+    }
+}
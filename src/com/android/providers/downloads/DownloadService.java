@@ -32,36 +32,36 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Downloads;
+import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.IndentingPrintWriter;
-import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -88,9 +88,15 @@ public class DownloadService extends Service {
     /** Observer to get notified when the content observer's data changes */
     private DownloadManagerContentObserver mObserver;
 
+    /** Observer to get notified when the mobile size limits change */
+    private SizeLimitObserver mSizeLimitObserver;
+
     /** Class to handle Notification Manager updates */
     private DownloadNotifier mNotifier;
 
+    /** Batched writer of progress checkpoints from all running downloads */
+    private ProgressCommitter mCommitter;
+
     /** Scheduling of the periodic cleanup job */
     private JobInfo mCleanupJob;
 
@@ -107,22 +113,62 @@ public class DownloadService extends Service {
      * content provider changes or disappears.
      */
     @GuardedBy("mDownloads")
-    private final Map<Long, DownloadInfo> mDownloads = Maps.newHashMap();
+    private final DownloadRegistry<DownloadInfo> mDownloads = new DownloadRegistry<>();
 
-    private final ExecutorService mExecutor = buildDownloadExecutor();
+    /**
+     * Downloads with nothing left to do, such as completed history, kept in
+     * compact form so that memory scales with active work. They're read back
+     * in full into {@link #mDownloads} once their row changes.
+     */
+    @GuardedBy("mDownloads")
+    private final DownloadRegistry<DownloadInfo.Dormant> mDormant = new DownloadRegistry<>();
 
-    private static ExecutorService buildDownloadExecutor() {
-        final int maxConcurrent = Resources.getSystem().getInteger(
-                com.android.internal.R.integer.config_MaxConcurrentDownloadsAllowed);
+    private final DownloadRegistry.StaleCallback<DownloadInfo> mStaleDownloadCallback =
+            new DownloadRegistry.StaleCallback<DownloadInfo>() {
+                @Override
+                public void onStale(long id, DownloadInfo info) {
+                    cleanUpDownloadLocked(info);
+                }
+            };
+
+    private final DownloadRegistry.StaleCallback<DownloadInfo.Dormant> mStaleDormantCallback =
+            new DownloadRegistry.StaleCallback<DownloadInfo.Dormant>() {
+                @Override
+                public void onStale(long id, DownloadInfo.Dormant dormant) {
+                    deleteFileIfExists(dormant.mOwnedFileName);
+                }
+            };
+
+    private ThreadPoolExecutor mExecutor;
+
+    /** Adjusts how many downloads {@link #mExecutor} runs at once */
+    private ConcurrencyController mConcurrency;
+
+    private static ThreadPoolExecutor buildDownloadExecutor(SystemFacade systemFacade,
+            int maxConcurrent) {
+        final DownloadScheduler scheduler = new DownloadScheduler(
+                systemFacade, Constants.SCHEDULE_SHORTEST_FIRST);
 
         // Create a bounded thread pool for executing downloads; it creates
         // threads as needed (up to maximum) and reclaims them when finished.
+        // Queued downloads are started in priority order.
         final ThreadPoolExecutor executor = new ThreadPoolExecutor(
-                maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>()) {
+                maxConcurrent, maxConcurrent, 10, TimeUnit.SECONDS, scheduler) {
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+                return new DownloadScheduler.Task<T>(runnable, value);
+            }
+
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                super.beforeExecute(t, r);
+                scheduler.onStarted(r);
+            }
+
             @Override
             protected void afterExecute(Runnable r, Throwable t) {
                 super.afterExecute(r, t);
+                scheduler.onFinished(r);
 
                 if (t == null && r instanceof Future<?>) {
                     try {
@@ -152,6 +198,39 @@ public class DownloadService extends Service {
 
     private volatile int mLastStartId;
 
+    /** Rate limiting of update passes requested by provider notifications */
+    private final UpdateScheduler mUpdateScheduler = new UpdateScheduler(
+            Constants.MIN_UPDATE_INTERVAL);
+
+    /**
+     * Set when something other than a provider change, such as an alarm or
+     * a connectivity change, asked for an update pass.
+     */
+    private volatile boolean mEvaluateRequested = true;
+
+    /** Time of the last update pass that read back every download */
+    @GuardedBy("mDownloads")
+    private long mLastFullUpdate;
+
+    /** Active state as of the last pass that considered starting downloads */
+    @GuardedBy("mDownloads")
+    private boolean mLastActive;
+
+    /** Downloads waiting to retry, by time of their next attempt */
+    @GuardedBy("mDownloads")
+    private final RetryScheduler mRetries = new RetryScheduler();
+
+    /** Downloads waiting on a condition, such as the network */
+    @GuardedBy("mDownloads")
+    private final StatusPartitions mPartitions = new StatusPartitions();
+
+    /** Set when connectivity changed, asking to reconsider downloads waiting for it */
+    private volatile boolean mNetworkChanged;
+
+    /** Time the pending retry alarm is set for, or {@link Long#MAX_VALUE} */
+    @GuardedBy("mDownloads")
+    private long mRetryAlarmTime = Long.MAX_VALUE;
+
     /**
      * Receives notifications when the data in the content provider changes
      */
@@ -162,7 +241,26 @@ public class DownloadService extends Service {
 
         @Override
         public void onChange(final boolean selfChange) {
-            enqueueUpdate();
+            // Progress alone can wait for the next interval, but anything that
+            // may start or stop a download is handled right away
+            enqueueUpdate(DirtyDownloads.getInstance().hasUrgentChanges());
+        }
+    }
+
+    /**
+     * Drops cached network decisions when the mobile size limits change, so
+     * that running and waiting downloads see the new limits right away.
+     */
+    private class SizeLimitObserver extends ContentObserver {
+        public SizeLimitObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public void onChange(final boolean selfChange) {
+            DownloadInfo.invalidateNetworkTypeCache();
+            mNetworkChanged = true;
+            enqueueUpdate(true);
         }
     }
 
@@ -193,6 +291,13 @@ public class DownloadService extends Service {
 
         mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
 
+        // Start from the configured concurrency, and adapt from there
+        final int maxConcurrent = Resources.getSystem().getInteger(
+                com.android.internal.R.integer.config_MaxConcurrentDownloadsAllowed);
+        mConcurrency = new ConcurrencyController(
+                1, Constants.MAX_CONCURRENT_DOWNLOADS, maxConcurrent);
+        mExecutor = buildDownloadExecutor(mSystemFacade, mConcurrency.getLimit());
+
         mUpdateThread = new HandlerThread(TAG + "-UpdateThread");
         mUpdateThread.start();
         mUpdateHandler = new Handler(mUpdateThread.getLooper(), mUpdateCallback);
@@ -202,10 +307,22 @@ public class DownloadService extends Service {
         mNotifier = new DownloadNotifier(this);
         mNotifier.cancelAll();
 
+        mCommitter = new ProgressCommitter(this);
+
+        // We know nothing yet, so the first pass reads back everything
+        DirtyDownloads.getInstance().markAllChanged();
+
         mObserver = new DownloadManagerContentObserver();
         getContentResolver().registerContentObserver(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
                 true, mObserver);
 
+        mSizeLimitObserver = new SizeLimitObserver();
+        getContentResolver().registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.DOWNLOAD_MAX_BYTES_OVER_MOBILE), false, mSizeLimitObserver);
+        getContentResolver().registerContentObserver(Settings.Global.getUriFor(
+                Settings.Global.DOWNLOAD_RECOMMENDED_MAX_BYTES_OVER_MOBILE), false,
+                mSizeLimitObserver);
+
         JobScheduler js = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
         if (needToScheduleCleanup(js)) {
             final JobInfo job = new JobInfo.Builder(CLEANUP_JOB_ID, sCleanupServiceName)
@@ -235,15 +352,30 @@ public class DownloadService extends Service {
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "Service onStart");
         }
+        final String action = (intent != null) ? intent.getAction() : null;
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+            // Only downloads waiting on the network can be affected, though
+            // cached decisions may depend on the network's limits
+            DownloadInfo.invalidateNetworkTypeCache();
+            mNetworkChanged = true;
+        } else if (!Constants.ACTION_RETRY.equals(action)) {
+            // Retry alarms only need the downloads that came due
+            mEvaluateRequested = true;
+        }
+
+        // Publish the start only after what it asked for, so that any pass
+        // that may stop the service for this start also sees its request
         mLastStartId = startId;
-        enqueueUpdate();
+        enqueueUpdate(true);
         return returnValue;
     }
 
     @Override
     public void onDestroy() {
         getContentResolver().unregisterContentObserver(mObserver);
+        getContentResolver().unregisterContentObserver(mSizeLimitObserver);
         mScanner.shutdown();
+        mCommitter.shutdown();
         mUpdateThread.quit();
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "Service onDestroy");
@@ -252,17 +384,26 @@ public class DownloadService extends Service {
     }
 
     /**
-     * Enqueue an {@link #updateLocked()} pass to occur in future.
+     * Enqueue an {@link #updateLocked(boolean)} pass to occur in future.
+     * Requests are coalesced by {@link #mUpdateScheduler}, so that passes
+     * that aren't urgent run at most once per
+     * {@link Constants#MIN_UPDATE_INTERVAL}.
+     *
+     * @param urgent run the pass as soon as possible, such as when a
+     *            download was added, deleted or paused.
      */
-    public void enqueueUpdate() {
+    public void enqueueUpdate(boolean urgent) {
         if (mUpdateHandler != null) {
-            mUpdateHandler.removeMessages(MSG_UPDATE);
-            mUpdateHandler.obtainMessage(MSG_UPDATE, mLastStartId, -1).sendToTarget();
+            final long delay = mUpdateScheduler.request(urgent, SystemClock.uptimeMillis());
+            if (delay >= 0) {
+                mUpdateHandler.removeMessages(MSG_UPDATE);
+                mUpdateHandler.sendEmptyMessageDelayed(MSG_UPDATE, delay);
+            }
         }
     }
 
     /**
-     * Enqueue an {@link #updateLocked()} pass to occur after delay, usually to
+     * Enqueue an {@link #updateLocked(boolean)} pass to occur after delay, usually to
      * catch any finished operations that didn't trigger an update pass.
      */
     private void enqueueFinalUpdate() {
@@ -274,13 +415,61 @@ public class DownloadService extends Service {
 
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
+    private static final int MSG_ADJUST_CONCURRENCY = 3;
+
+    /**
+     * Sample current throughput and disk latency, and adjust how many
+     * downloads run at once. Keeps sampling while any downloads are running
+     * or queued.
+     */
+    private void adjustConcurrency() {
+        final int oldLimit = mConcurrency.getLimit();
+        final boolean saturated = mExecutor.getActiveCount() >= oldLimit
+                && !mExecutor.getQueue().isEmpty();
+        final int limit = mConcurrency.onSample(mSystemFacade.currentTimeMillis(),
+                mNotifier.getTotalSpeed(), ConcurrencyController.drainDiskLatency(), saturated);
+
+        // Pool size must never drop below core size
+        if (limit > oldLimit) {
+            mExecutor.setMaximumPoolSize(limit);
+            mExecutor.setCorePoolSize(limit);
+        } else if (limit < oldLimit) {
+            mExecutor.setCorePoolSize(limit);
+            mExecutor.setMaximumPoolSize(limit);
+        }
+        if (limit != oldLimit && Constants.LOGV) {
+            Log.v(TAG, "Concurrent downloads " + oldLimit + " -> " + limit);
+        }
+
+        if (mExecutor.getActiveCount() > 0 || !mExecutor.getQueue().isEmpty()) {
+            enqueueAdjustConcurrency();
+        }
+    }
+
+    private void enqueueAdjustConcurrency() {
+        if (!mUpdateHandler.hasMessages(MSG_ADJUST_CONCURRENCY)) {
+            mUpdateHandler.sendEmptyMessageDelayed(
+                    MSG_ADJUST_CONCURRENCY, Constants.CONCURRENCY_SAMPLE_INTERVAL);
+        }
+    }
 
     private Handler.Callback mUpdateCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(Message msg) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-            final int startId = msg.arg1;
+            if (msg.what == MSG_ADJUST_CONCURRENCY) {
+                adjustConcurrency();
+                return true;
+            }
+
+            // Coalesced passes may have been requested before the latest
+            // start, and cover it as well
+            final int startId = (msg.what == MSG_UPDATE) ? mLastStartId : msg.arg1;
+
+            // Any pass picks up every change recorded so far
+            mUpdateHandler.removeMessages(MSG_UPDATE);
+            mUpdateScheduler.onPassStarted(SystemClock.uptimeMillis());
             if (DEBUG_LIFECYCLE) Log.v(TAG, "Updating for startId " + startId);
 
             // Since database is current source of truth, our "active" status
@@ -292,7 +481,7 @@ public class DownloadService extends Service {
 
             final boolean isActive;
             synchronized (mDownloads) {
-                isActive = updateLocked();
+                isActive = updateLocked(msg.what == MSG_FINAL_UPDATE);
             }
 
             if (msg.what == MSG_FINAL_UPDATE) {
@@ -318,6 +507,7 @@ public class DownloadService extends Service {
                 // Enqueue delayed update pass to catch finished operations that
                 // didn't trigger an update pass; these are bugs.
                 enqueueFinalUpdate();
+                enqueueAdjustConcurrency();
 
             } else {
                 // No active tasks, and any pending update messages can be
@@ -327,6 +517,7 @@ public class DownloadService extends Service {
                 if (stopSelfResult(startId)) {
                     if (DEBUG_LIFECYCLE) Log.v(TAG, "Nothing left; stopped");
                     getContentResolver().unregisterContentObserver(mObserver);
+                    getContentResolver().unregisterContentObserver(mSizeLimitObserver);
                     mScanner.shutdown();
                     mUpdateThread.quit();
                 }
@@ -342,36 +533,225 @@ public class DownloadService extends Service {
      * instances, request {@link DownloadScanner} scans, update user-visible
      * notifications, and/or schedule future actions with {@link AlarmManager}.
      * <p>
+     * Only downloads recorded by {@link DirtyDownloads} are read back, with a
+     * periodic full pass to catch anything that slipped through. Passes
+     * where only progress changed skip considering every download.
+     * <p>
      * Should only be called from {@link #mUpdateThread} as after being
-     * requested through {@link #enqueueUpdate()}.
+     * requested through {@link #enqueueUpdate(boolean)}.
      *
+     * @param forceFull read back every download, regardless of changes.
      * @return If there are active tasks being processed, as of the database
      *         snapshot taken in this update.
      */
-    private boolean updateLocked() {
+    private boolean updateLocked(boolean forceFull) {
         final long now = mSystemFacade.currentTimeMillis();
 
-        boolean isActive = false;
-        long nextActionMillis = Long.MAX_VALUE;
+        final DirtyDownloads.Changes changes = DirtyDownloads.getInstance().drain();
+        final Set<Long> dirtyIds = changes.getIds();
+        final boolean full = forceFull || changes.all
+                || dirtyIds.size() > Constants.INCREMENTAL_UPDATE_MAX_IDS
+                || Math.abs(now - mLastFullUpdate) >= Constants.FULL_UPDATE_INTERVAL;
+        final boolean evaluate = full || mEvaluateRequested || !changes.isProgressOnly();
+        final boolean networkChanged = mNetworkChanged;
+        mEvaluateRequested = false;
+        mNetworkChanged = false;
+
+        if (full) {
+            // Pick up any changed size limits now and then
+            DownloadInfo.invalidateNetworkTypeCache();
+            readDownloadsLocked(null);
+            mLastFullUpdate = now;
+        } else if (!dirtyIds.isEmpty()) {
+            readDownloadsLocked(dirtyIds);
+        }
+
+        final boolean retried = dispatchRetriesLocked(now);
+
+        if (!evaluate) {
+            // Progress alone can't start, stop, or scan anything, and a
+            // network change only affects downloads waiting for it
+            final boolean resumed = networkChanged && dispatchNetworkLocked();
+            mNotifier.updateWith(mDownloads.values());
+            scheduleRetryAlarmLocked(now);
+            mLastActive |= retried | resumed;
+            return mLastActive;
+        }
+
+        // Kick off download tasks that are ready; anything outside these
+        // partitions is finished, paused, or left to its retry alarm
+        boolean isActive = retried;
+        isActive |= dispatchRunnableLocked();
+        isActive |= dispatchNetworkLocked();
+
+        for (DownloadInfo info : mDownloads.values()) {
+            // Kick off media scan if completed
+            final boolean activeScan = info.startScanIfReady(mScanner);
+
+            if (DEBUG_LIFECYCLE && activeScan) {
+                Log.v(TAG, "Download " + info.mId + ": activeScan=" + activeScan);
+            }
+
+            isActive |= activeScan;
+        }
+
+        // Update notifications visible to user
+        mNotifier.updateWith(mDownloads.values());
+
+        evictDormantLocked();
+        scheduleRetryAlarmLocked(now);
 
-        final Set<Long> staleIds = Sets.newHashSet(mDownloads.keySet());
+        mLastActive = isActive;
+        return isActive;
+    }
+
+    /**
+     * Start the downloads whose retry came due, without considering any
+     * others.
+     *
+     * @return If any download was started.
+     */
+    private boolean dispatchRetriesLocked(long now) {
+        if (mRetryAlarmTime <= now) {
+            // Alarm has fired, so the next one must be set again even when
+            // it lands on the same time
+            mRetryAlarmTime = Long.MAX_VALUE;
+        }
+
+        boolean started = false;
+        for (long id : mRetries.pollDue(now)) {
+            final DownloadInfo info = mDownloads.get(id);
+            if (info == null) continue;
+
+            if (info.startDownloadIfReady(mExecutor)) {
+                started = true;
+            } else {
+                // Clock moved under us; try again later
+                scheduleRetryLocked(info, now);
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Start the downloads that are new, pending or interrupted, without
+     * considering any others.
+     *
+     * @return If any of them is running.
+     */
+    private boolean dispatchRunnableLocked() {
+        boolean active = false;
+        for (DownloadInfo info : mPartitions.get(StatusPartitions.PARTITION_RUNNABLE)) {
+            final boolean activeDownload = info.startDownloadIfReady(mExecutor);
+            if (DEBUG_LIFECYCLE && activeDownload) {
+                Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload);
+            }
+            active |= activeDownload;
+        }
+        return active;
+    }
+
+    /**
+     * Start the downloads waiting for a usable network, without considering
+     * any others.
+     *
+     * @return If any download was started.
+     */
+    private boolean dispatchNetworkLocked() {
+        boolean started = false;
+        for (DownloadInfo info : mPartitions.get(StatusPartitions.PARTITION_WAITING_FOR_NETWORK)) {
+            started |= info.startDownloadIfReady(mExecutor);
+        }
+        for (DownloadInfo info : mPartitions.get(StatusPartitions.PARTITION_QUEUED_FOR_WIFI)) {
+            started |= info.startDownloadIfReady(mExecutor);
+        }
+        return started;
+    }
+
+    /**
+     * Track when the given download should next be attempted, if it's
+     * waiting to retry, and what else it's waiting on.
+     */
+    private void scheduleRetryLocked(DownloadInfo info, long now) {
+        mPartitions.update(info);
+        if (info.mStatus == Downloads.Impl.STATUS_WAITING_TO_RETRY) {
+            mRetries.schedule(info.mId, info.restartTime(now));
+        } else {
+            mRetries.cancel(info.mId);
+        }
+    }
+
+    /**
+     * Set alarm for the earliest retry. It's okay if the service continues
+     * to run in meantime, since it will kick off an update pass.
+     */
+    private void scheduleRetryAlarmLocked(long now) {
+        final long next = mRetries.getNextTime();
+        if (next == Long.MAX_VALUE || next == mRetryAlarmTime) return;
+        mRetryAlarmTime = next;
+
+        if (Constants.LOGV) {
+            Log.v(TAG, "scheduling start in " + (next - now) + "ms");
+        }
+
+        final Intent intent = new Intent(Constants.ACTION_RETRY);
+        intent.setClass(this, DownloadReceiver.class);
+        mAlarmManager.set(AlarmManager.RTC_WAKEUP, next,
+                PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_ONE_SHOT));
+    }
+
+    /**
+     * Move downloads with nothing left to do out of {@link #mDownloads} into
+     * their compact form.
+     */
+    private void evictDormantLocked() {
+        final Iterator<DownloadInfo> it = mDownloads.values().iterator();
+        while (it.hasNext()) {
+            final DownloadInfo info = it.next();
+            if (info.isDormant()) {
+                mDormant.put(info.mId, info.toDormant());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Read back the given downloads from {@link DownloadProvider}, or all of
+     * them when null, cleaning up any that were deleted or disappeared.
+     * Dormant downloads are only read back in full when one of the columns
+     * checked by {@link DownloadInfo.Reader#isUnchanged(DownloadInfo.Dormant)}
+     * changed, so a full pass over settled downloads costs a few primitive
+     * reads per row.
+     */
+    private void readDownloadsLocked(Set<Long> ids) {
+        final long now = mSystemFacade.currentTimeMillis();
+
+        // Downloads not seen again in this generation have disappeared
+        mDownloads.nextGeneration();
+        mDormant.nextGeneration();
 
         final ContentResolver resolver = getContentResolver();
-        final Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
-                null, null, null, null);
+        final Cursor cursor = queryDownloads(resolver, ids);
         try {
-            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
-            final int idColumn = cursor.getColumnIndexOrThrow(Downloads.Impl._ID);
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
             while (cursor.moveToNext()) {
-                final long id = cursor.getLong(idColumn);
+                final long id = reader.getId();
 
                 DownloadInfo info = mDownloads.get(id);
                 if (info != null) {
                     updateDownload(reader, info, now);
                 } else {
+                    final DownloadInfo.Dormant dormant = mDormant.get(id);
+                    if (dormant != null && reader.isUnchanged(dormant)) {
+                        mDormant.touch(id);
+                        continue;
+                    }
+                    mDormant.remove(id);
                     info = insertDownloadLocked(reader, now);
                 }
 
+                scheduleRetryLocked(info, now);
+
                 if (info.mDeleted) {
                     // Delete download if requested, but only after cleaning up
                     if (!TextUtils.isEmpty(info.mMediaProviderUri)) {
@@ -380,53 +760,42 @@ public class DownloadService extends Service {
 
                     deleteFileIfExists(info.mFileName);
                     resolver.delete(info.getAllDownloadsUri(), null, null);
+                    deleteDownloadLocked(id);
 
                 } else {
-                    // Kick off download task if ready
-                    final boolean activeDownload = info.startDownloadIfReady(mExecutor);
-
-                    // Kick off media scan if completed
-                    final boolean activeScan = info.startScanIfReady(mScanner);
-
-                    if (DEBUG_LIFECYCLE && (activeDownload || activeScan)) {
-                        Log.v(TAG, "Download " + info.mId + ": activeDownload=" + activeDownload
-                                + ", activeScan=" + activeScan);
-                    }
-
-                    isActive |= activeDownload;
-                    isActive |= activeScan;
-                    staleIds.remove(id);
+                    mDownloads.touch(id);
                 }
-
-                // Keep track of nearest next action
-                nextActionMillis = Math.min(info.nextActionMillis(now), nextActionMillis);
             }
         } finally {
             cursor.close();
         }
 
         // Clean up stale downloads that disappeared
-        for (Long id : staleIds) {
-            deleteDownloadLocked(id);
-        }
-
-        // Update notifications visible to user
-        mNotifier.updateWith(mDownloads.values());
-
-        // Set alarm when next action is in future. It's okay if the service
-        // continues to run in meantime, since it will kick off an update pass.
-        if (nextActionMillis > 0 && nextActionMillis < Long.MAX_VALUE) {
-            if (Constants.LOGV) {
-                Log.v(TAG, "scheduling start in " + nextActionMillis + "ms");
+        if (ids == null) {
+            mDownloads.removeStale(mStaleDownloadCallback);
+            mDormant.removeStale(mStaleDormantCallback);
+        } else {
+            for (Long id : ids) {
+                if (mDownloads.isStale(id)) {
+                    deleteDownloadLocked(id);
+                } else if (mDormant.isStale(id)) {
+                    mStaleDormantCallback.onStale(id, mDormant.remove(id));
+                }
             }
-
-            final Intent intent = new Intent(Constants.ACTION_RETRY);
-            intent.setClass(this, DownloadReceiver.class);
-            mAlarmManager.set(AlarmManager.RTC_WAKEUP, now + nextActionMillis,
-                    PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_ONE_SHOT));
         }
+    }
 
-        return isActive;
+    /**
+     * Query the given downloads, or all of them when null.
+     */
+    @VisibleForTesting
+    static Cursor queryDownloads(ContentResolver resolver, Collection<Long> ids) {
+        String selection = null;
+        if (ids != null) {
+            selection = Downloads.Impl._ID + " IN (" + TextUtils.join(",", ids) + ")";
+        }
+        return resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                DownloadInfo.Reader.PROJECTION, selection, null, null);
     }
 
     /**
@@ -434,7 +803,8 @@ public class DownloadService extends Service {
      * download if appropriate.
      */
     private DownloadInfo insertDownloadLocked(DownloadInfo.Reader reader, long now) {
-        final DownloadInfo info = reader.newDownloadInfo(this, mSystemFacade, mNotifier);
+        final DownloadInfo info = reader.newDownloadInfo(
+                this, mSystemFacade, mNotifier, mCommitter);
         mDownloads.put(info.mId, info);
 
         if (Constants.LOGVV) {
@@ -459,9 +829,19 @@ public class DownloadService extends Service {
      * Removes the local copy of the info about a download.
      */
     private void deleteDownloadLocked(long id) {
-        DownloadInfo info = mDownloads.get(id);
+        cleanUpDownloadLocked(mDownloads.remove(id));
+    }
+
+    /**
+     * Stops a download whose local copy was removed, and deletes its file
+     * when it's ours to delete.
+     */
+    private void cleanUpDownloadLocked(DownloadInfo info) {
+        mRetries.cancel(info.mId);
+        mPartitions.remove(info.mId);
         if (info.mStatus == Downloads.Impl.STATUS_RUNNING) {
             info.mStatus = Downloads.Impl.STATUS_CANCELED;
+            info.mControlState.set(ControlState.FLAG_CANCELED);
         }
         if (info.mDestination != Downloads.Impl.DESTINATION_EXTERNAL && info.mFileName != null) {
             if (Constants.LOGVV) {
@@ -469,7 +849,6 @@ public class DownloadService extends Service {
             }
             deleteFileIfExists(info.mFileName);
         }
-        mDownloads.remove(info.mId);
     }
 
     private void deleteFileIfExists(String path) {
@@ -488,12 +867,20 @@ public class DownloadService extends Service {
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
         synchronized (mDownloads) {
-            final List<Long> ids = Lists.newArrayList(mDownloads.keySet());
-            Collections.sort(ids);
-            for (Long id : ids) {
+            for (long id : mDownloads.keys()) {
                 final DownloadInfo info = mDownloads.get(id);
                 info.dump(pw);
             }
+            pw.printPair("dormant", mDormant.size());
+            pw.println();
+            mRetries.dump(pw);
+            mPartitions.dump(pw);
         }
+
+        mUpdateScheduler.dump(pw);
+        mConcurrency.dump(pw);
+        TlsSessionCache.getInstance().dump(pw);
+        HostRegistry.getInstance().dump(pw);
+        NetworkChangeStats.getInstance().dump(pw);
     }
 }
@@ -48,6 +48,7 @@ import android.net.INetworkPolicyListener;
 import android.net.NetworkInfo;
 import android.net.NetworkPolicyManager;
 import android.net.TrafficStats;
+import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.Process;
@@ -60,6 +61,7 @@ import android.system.OsConstants;
 import android.util.Log;
 import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.providers.downloads.DownloadInfo.NetworkState;
 
 import libcore.io.IoUtils;
@@ -67,14 +69,23 @@ import libcore.io.IoUtils;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Task which executes a given {@link DownloadInfo}: making network requests,
@@ -87,7 +98,7 @@ import java.net.URLConnection;
  * Failed network requests are retried several times before giving up. Local
  * disk errors fail immediately and are not retried.
  */
-public class DownloadThread implements Runnable {
+public class DownloadThread implements Runnable, DownloadScheduler.Prioritized {
 
     // TODO: bind each download to a specific network interface to avoid state
     // checking races once we have ConnectivityManager API
@@ -99,9 +110,34 @@ public class DownloadThread implements Runnable {
 
     private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
+    /** Interval between checks while coordinating a segmented transfer */
+    private static final long SEGMENT_TICK_MILLIS = 500;
+    /** Time to let throughput settle before judging a new segment */
+    private static final long SEGMENT_SETTLE_MILLIS = 3 * SECOND_IN_MILLIS;
+    /** Speed after a split must be at least this percentage of speed before */
+    private static final long SEGMENT_MIN_GAIN_PERCENT = 110;
+
+    /** Host connection a segment uses: none granted, the download's own, or an extra */
+    private static final int SLOT_NONE = 0;
+    private static final int SLOT_PRIMARY = 1;
+    private static final int SLOT_EXTRA = 2;
+
+    /** Interval between pause/cancel checks while waiting for read-ahead */
+    private static final long PIPELINE_POLL_MILLIS = 500;
+
+    private static final BufferPool sBufferPool = new BufferPool(Constants.BUFFER_SIZE,
+            Constants.TRANSFER_BUFFER_MAX_SIZE, Constants.TRANSFER_BUFFER_POOL_BYTES);
+    private static final BufferSizer sBufferSizer = new BufferSizer(Constants.BUFFER_SIZE,
+            Constants.TRANSFER_MEMORY_BUDGET, Constants.TRANSFER_PIPELINE_DEPTH);
+    private static final DurabilityPolicy sDurability =
+            DurabilityPolicy.create(Constants.DURABILITY_POLICY);
+    /** Extra segments allowed to run, bounding threads beyond the executor */
+    private static final Semaphore sExtraSegments = new Semaphore(Constants.SEGMENT_MAX_EXTRA);
+
     private final Context mContext;
     private final SystemFacade mSystemFacade;
     private final DownloadNotifier mNotifier;
+    private final ProgressCommitter mCommitter;
 
     private final long mId;
 
@@ -113,8 +149,6 @@ public class DownloadThread implements Runnable {
     private final DownloadInfo mInfo;
     private final DownloadInfoDelta mInfoDelta;
 
-    private volatile boolean mPolicyDirty;
-
     /**
      * Local changes to {@link DownloadInfo}. These are kept local to avoid
      * racing with the thread that updates based on change notifications.
@@ -129,6 +163,9 @@ public class DownloadThread implements Runnable {
         public long mTotalBytes;
         public long mCurrentBytes;
         public String mETag;
+        public String mChunkMap;
+        public String mContentEncoding;
+        public long mVerifiedBytes;
 
         public String mErrorMsg;
 
@@ -142,6 +179,9 @@ public class DownloadThread implements Runnable {
             mTotalBytes = info.mTotalBytes;
             mCurrentBytes = info.mCurrentBytes;
             mETag = info.mETag;
+            mChunkMap = info.mChunkMap;
+            mContentEncoding = info.mContentEncoding;
+            mVerifiedBytes = info.mVerifiedBytes;
         }
 
         private ContentValues buildContentValues() {
@@ -156,10 +196,19 @@ public class DownloadThread implements Runnable {
             values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mTotalBytes);
             values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, mCurrentBytes);
             values.put(Constants.ETAG, mETag);
+            values.put(Constants.CHUNK_MAP, mChunkMap);
+            values.put(Constants.CONTENT_ENCODING, mContentEncoding);
+            values.put(Constants.VERIFIED_BYTES, mVerifiedBytes);
 
-            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, mSystemFacade.currentTimeMillis());
+            final long now = mSystemFacade.currentTimeMillis();
+            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, now);
             values.put(Downloads.Impl.COLUMN_ERROR_MSG, mErrorMsg);
 
+            // Persist when to retry, so nobody has to work it out again
+            values.put(Constants.NEXT_ATTEMPT, (mStatus == STATUS_WAITING_TO_RETRY)
+                    ? DownloadInfo.restartTime(now, mNumFailed, mRetryAfter, mInfo.mFuzz, now)
+                    : 0);
+
             return values;
         }
 
@@ -167,8 +216,7 @@ public class DownloadThread implements Runnable {
          * Blindly push update of current delta values to provider.
          */
         public void writeToDatabase() {
-            mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), buildContentValues(),
-                    null, null);
+            mCommitter.update(mId, mInfo.getAllDownloadsUri(), buildContentValues(), null);
         }
 
         /**
@@ -176,8 +224,22 @@ public class DownloadThread implements Runnable {
          * that we haven't been paused or deleted.
          */
         public void writeToDatabaseOrThrow() throws StopRequestException {
-            if (mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-                    buildContentValues(), Downloads.Impl.COLUMN_DELETED + " == '0'", null) == 0) {
+            if (mCommitter.update(mId, mInfo.getAllDownloadsUri(), buildContentValues(),
+                    Downloads.Impl.COLUMN_DELETED + " == '0'") == 0) {
+                throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
+            }
+        }
+
+        /**
+         * Queue a progress checkpoint of the delta values that change while
+         * transferring, which is written along with those of other downloads.
+         * All other values must have been written already. Throws when an
+         * earlier checkpoint found that we've been deleted.
+         */
+        public void checkpointToDatabaseOrThrow() throws StopRequestException {
+            if (!mCommitter.checkpoint(new ProgressCommitter.Checkpoint(mId,
+                    mInfo.getAllDownloadsUri(), mCurrentBytes, mTotalBytes, mETag,
+                    mChunkMap, mVerifiedBytes, mSystemFacade.currentTimeMillis()))) {
                 throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
             }
         }
@@ -189,14 +251,57 @@ public class DownloadThread implements Runnable {
      */
     private boolean mMadeProgress = false;
 
+    /**
+     * Time the host of this download asked us to wait before trying again,
+     * or 0 if it let us connect.
+     */
+    private long mHostRetryAfter = 0;
+
+    /**
+     * Whether this download holds a {@link HostRegistry} connection, which
+     * it gives up while waiting for a network to hand off to.
+     */
+    private boolean mHostAcquired = false;
+
+    /**
+     * Record forward progress, noting the first bytes received since the
+     * network last changed.
+     */
+    private void onProgress() {
+        if (!mMadeProgress) {
+            mMadeProgress = true;
+            NetworkChangeStats.getInstance().onFirstByte(SystemClock.elapsedRealtime());
+        }
+    }
+
     /**
      * Details from the last time we pushed a database update.
      */
     private long mLastUpdateBytes = 0;
     private long mLastUpdateTime = 0;
 
+    /**
+     * Details from the last time we made destination data durable.
+     */
+    private long mLastSyncBytes = 0;
+    private long mLastSyncTime = 0;
+
     private int mNetworkType = ConnectivityManager.TYPE_NONE;
 
+    /**
+     * Flag indicating if the requesting app opted into persistent
+     * connections, which are then left to the platform connection pool
+     * whenever a response body has been fully consumed. Read from request
+     * headers once running, so that creating this task doesn't query them.
+     */
+    private boolean mKeepAlive;
+
+    /**
+     * Flag indicating if the requesting app opted into compressed transfers,
+     * which we then decode ourselves.
+     */
+    private boolean mCompress;
+
     /** Historical bytes/second speed of this download. */
     private long mSpeed;
     /** Time when current sample started. */
@@ -205,16 +310,44 @@ public class DownloadThread implements Runnable {
     private long mSpeedSampleBytes;
 
     public DownloadThread(Context context, SystemFacade systemFacade, DownloadNotifier notifier,
-            DownloadInfo info) {
+            ProgressCommitter committer, DownloadInfo info) {
         mContext = context;
         mSystemFacade = systemFacade;
         mNotifier = notifier;
+        mCommitter = committer;
 
         mId = info.mId;
         mInfo = info;
         mInfoDelta = new DownloadInfoDelta(info);
     }
 
+    @Override
+    public int getPriorityClass() {
+        return mInfo.getPriorityClass();
+    }
+
+    @Override
+    public int getUid() {
+        return mInfo.mUid;
+    }
+
+    @Override
+    public long getRemainingBytes() {
+        final long total = mInfo.mTotalBytes;
+        return (total >= 0) ? Math.max(0, total - mInfo.mCurrentBytes) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public String getHost() {
+        final String connected = mInfo.mConnectedHost;
+        if (connected != null) {
+            return connected;
+        }
+        final String uri = mInfo.mUri;
+        final String host = (uri != null) ? Uri.parse(uri).getHost() : null;
+        return (host != null) ? host.toLowerCase(Locale.US) : null;
+    }
+
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -227,6 +360,10 @@ public class DownloadThread implements Runnable {
             return;
         }
 
+        // Request headers are only loaded here, off the update thread
+        mKeepAlive = isHeaderTokenRequested(mInfo, "Connection", "keep-alive");
+        mCompress = isHeaderTokenRequested(mInfo, "Accept-Encoding", "gzip");
+
         final NetworkPolicyManager netPolicy = NetworkPolicyManager.from(mContext);
         PowerManager.WakeLock wakeLock = null;
         final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
@@ -256,6 +393,7 @@ public class DownloadThread implements Runnable {
             executeDownload();
 
             mInfoDelta.mStatus = STATUS_SUCCESS;
+            mInfoDelta.mChunkMap = null;
             TrafficStats.incrementOperationCount(1);
 
             // If we just finished a chunked file, record total size
@@ -272,9 +410,15 @@ public class DownloadThread implements Runnable {
                     + mInfoDelta.mErrorMsg);
 
             // Nobody below our level should request retries, since we handle
-            // failure counts at this level.
+            // failure counts at this level. The only exception is waiting on
+            // a failing host whose circuit is open, which isn't a failure of
+            // this download.
             if (mInfoDelta.mStatus == STATUS_WAITING_TO_RETRY) {
-                throw new IllegalStateException("Execution should always throw final error codes");
+                if (mHostRetryAfter <= 0) {
+                    throw new IllegalStateException(
+                            "Execution should always throw final error codes");
+                }
+                mInfoDelta.mRetryAfter = (int) mHostRetryAfter;
             }
 
             // Some errors should be retryable, unless we fail too many times.
@@ -340,7 +484,30 @@ public class DownloadThread implements Runnable {
      * handle the response, and transfer the data to the destination file.
      */
     private void executeDownload() throws StopRequestException {
-        final boolean resuming = mInfoDelta.mCurrentBytes != 0;
+        // Never resume past data that was known to be durable
+        if (mInfoDelta.mVerifiedBytes >= 0
+                && mInfoDelta.mVerifiedBytes < mInfoDelta.mCurrentBytes) {
+            logDebug("Resuming from verified " + mInfoDelta.mVerifiedBytes + " instead of "
+                    + mInfoDelta.mCurrentBytes);
+            mInfoDelta.mCurrentBytes = mInfoDelta.mVerifiedBytes;
+        }
+
+        // Skip over any ranges already written right after our current offset
+        final DownloadChunkMap written = DownloadChunkMap.parse(mInfoDelta.mChunkMap);
+        written.add(0, mInfoDelta.mCurrentBytes);
+        mInfoDelta.mCurrentBytes = written.getContiguousEnd(0);
+
+        // Everything we resume from is durable, so start counting from here
+        mInfoDelta.mVerifiedBytes = mInfoDelta.mCurrentBytes;
+        mLastSyncBytes = mInfoDelta.mCurrentBytes;
+        mLastSyncTime = SystemClock.elapsedRealtime();
+
+        if (mInfoDelta.mTotalBytes > 0 && mInfoDelta.mCurrentBytes == mInfoDelta.mTotalBytes) {
+            logDebug("All ranges already written");
+            return;
+        }
+
+        final boolean resuming = !written.isEmpty();
 
         URL url;
         try {
@@ -350,29 +517,59 @@ public class DownloadThread implements Runnable {
             throw new StopRequestException(STATUS_BAD_REQUEST, e);
         }
 
+        // Any Retry-After from an earlier attempt no longer applies
+        mInfoDelta.mRetryAfter = 0;
+
+        final HostRegistry hosts = HostRegistry.getInstance();
         int redirectionCount = 0;
         while (redirectionCount++ < Constants.MAX_REDIRECTS) {
+            // Wait together with other downloads while the host circuit is open
+            final String host = url.getHost();
+            mHostRetryAfter = hosts.acquire(host, mSystemFacade.currentTimeMillis());
+            if (mHostRetryAfter > 0) {
+                throw new StopRequestException(STATUS_WAITING_TO_RETRY,
+                        "Waiting " + mHostRetryAfter + "ms for host");
+            }
+            mHostAcquired = true;
+            mInfo.mConnectedHost = host.toLowerCase(Locale.US);
+
             // Open connection and follow any redirects until we have a useful
             // response with body.
             HttpURLConnection conn = null;
+            boolean reusable = false;
+            boolean connectable = false;
+            boolean responded = false;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setInstanceFollowRedirects(false);
-                conn.setConnectTimeout(DEFAULT_TIMEOUT);
-                conn.setReadTimeout(DEFAULT_TIMEOUT);
-
+                connectable = true;
+                conn = openConnection(url);
                 addRequestHeaders(conn, resuming);
 
                 final int responseCode = conn.getResponseCode();
+                responded = true;
+                if (responseCode != HTTP_UNAVAILABLE && responseCode != HTTP_INTERNAL_ERROR) {
+                    hosts.recordSuccess(host);
+                }
+
                 switch (responseCode) {
                     case HTTP_OK:
                         if (resuming) {
-                            throw new StopRequestException(
-                                    STATUS_CANNOT_RESUME, "Expected partial, but received OK");
+                            if (mInfoDelta.mContentEncoding == null) {
+                                throw new StopRequestException(STATUS_CANNOT_RESUME,
+                                        "Expected partial, but received OK");
+                            }
+                            if (!mInfoDelta.mContentEncoding.equals(getContentEncoding(conn))) {
+                                throw new StopRequestException(STATUS_CANNOT_RESUME,
+                                        "Content encoding changed while resuming");
+                            }
                         }
                         parseOkHeaders(conn);
-                        transferData(conn);
+                        if (isSegmentable(conn, false)) {
+                            transferSegmented(conn, url);
+                        } else {
+                            transferData(conn);
+                            reusable = mKeepAlive;
+                        }
                         return;
 
                     case HTTP_PARTIAL:
@@ -380,7 +577,12 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected OK, but received partial");
                         }
-                        transferData(conn);
+                        if (isSegmentable(conn, true)) {
+                            transferSegmented(conn, url);
+                        } else {
+                            transferData(conn);
+                            reusable = mKeepAlive;
+                        }
                         return;
 
                     case HTTP_MOVED_PERM:
@@ -393,6 +595,7 @@ public class DownloadThread implements Runnable {
                             // Push updated URL back to database
                             mInfoDelta.mUri = url.toString();
                         }
+                        reusable = mKeepAlive && drainBody(conn);
                         continue;
 
                     case HTTP_PRECON_FAILED:
@@ -405,10 +608,13 @@ public class DownloadThread implements Runnable {
 
                     case HTTP_UNAVAILABLE:
                         parseUnavailableHeaders(conn);
+                        hosts.recordFailure(host, mInfoDelta.mRetryAfter,
+                                mSystemFacade.currentTimeMillis());
                         throw new StopRequestException(
                                 HTTP_UNAVAILABLE, conn.getResponseMessage());
 
                     case HTTP_INTERNAL_ERROR:
+                        hosts.recordFailure(host, 0, mSystemFacade.currentTimeMillis());
                         throw new StopRequestException(
                                 HTTP_INTERNAL_ERROR, conn.getResponseMessage());
 
@@ -418,6 +624,10 @@ public class DownloadThread implements Runnable {
                 }
 
             } catch (IOException e) {
+                if (connectable && !responded && isHostFailure(e, mInfoDelta.mTotalBytes)) {
+                    // Host never answered over a good network; count against it
+                    hosts.recordFailure(host, 0, mSystemFacade.currentTimeMillis());
+                }
                 if (e instanceof ProtocolException
                         && e.getMessage().startsWith("Unexpected status line")) {
                     throw new StopRequestException(STATUS_UNHANDLED_HTTP_CODE, e);
@@ -427,13 +637,164 @@ public class DownloadThread implements Runnable {
                 }
 
             } finally {
-                if (conn != null) conn.disconnect();
+                // Anything short of a fully consumed body is aborted, since
+                // the server may otherwise keep streaming to us.
+                if (conn != null && !reusable) conn.disconnect();
+                if (mHostAcquired) {
+                    hosts.release(host);
+                    mHostAcquired = false;
+                }
             }
         }
 
         throw new StopRequestException(STATUS_TOO_MANY_REDIRECTS, "Too many redirects");
     }
 
+    /**
+     * Return if failing to get any response, as with the given exception,
+     * should count against the host. Failures while our own network is gone
+     * or has changed, time outs that a stalled local link can cause, and
+     * sockets we closed ourselves to pause or cancel aren't the host's fault.
+     */
+    private boolean isHostFailure(IOException e, long totalBytes) {
+        if (e instanceof InterruptedIOException) {
+            return false;
+        }
+        if (mInfo.mControlState.get() != 0) {
+            return false;
+        }
+        final NetworkInfo info = mSystemFacade.getActiveNetworkInfo(mInfo.mUid);
+        if (info == null || !info.isConnected() || info.getType() != mNetworkType) {
+            return false;
+        }
+        return mInfo.checkCanUseNetwork(totalBytes) == NetworkState.OK;
+    }
+
+    /**
+     * Open a connection to the given URL, without following redirects and
+     * sharing TLS sessions with all other downloads.
+     */
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(DEFAULT_TIMEOUT);
+        conn.setReadTimeout(DEFAULT_TIMEOUT);
+        TlsSessionCache.getInstance().apply(conn);
+        return conn;
+    }
+
+    /**
+     * Return if the requesting app included the given token in one of its
+     * own request headers, which is how apps opt into optional behavior such
+     * as persistent connections or compressed transfers.
+     */
+    private static boolean isHeaderTokenRequested(DownloadInfo info, String name, String token) {
+        for (Pair<String, String> header : info.getHeaders()) {
+            if (!name.equalsIgnoreCase(header.first)) continue;
+            for (String value : header.second.split(",")) {
+                // Ignore any parameters, such as quality values
+                final int params = value.indexOf(';');
+                if (params != -1) {
+                    value = value.substring(0, params);
+                }
+                if (token.equalsIgnoreCase(value.trim())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the supported content coding of the given response, or
+     * {@code null} when the body isn't encoded.
+     */
+    private static String getContentEncoding(HttpURLConnection conn)
+            throws StopRequestException {
+        final String encoding = conn.getHeaderField("Content-Encoding");
+        if (encoding == null || "identity".equalsIgnoreCase(encoding.trim())) {
+            return null;
+        }
+        if ("gzip".equalsIgnoreCase(encoding.trim())
+                || "deflate".equalsIgnoreCase(encoding.trim())) {
+            return encoding.trim().toLowerCase();
+        }
+        throw new StopRequestException(
+                STATUS_UNHANDLED_HTTP_CODE, "Unsupported content encoding " + encoding);
+    }
+
+    /**
+     * Wrap the given response body to decode the given content coding.
+     */
+    private static InputStream decodeContent(InputStream in, String encoding)
+            throws IOException {
+        if ("gzip".equals(encoding)) {
+            return new GZIPInputStream(in, Constants.BUFFER_SIZE);
+        } else if ("deflate".equals(encoding)) {
+            return new InflaterInputStream(in);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * Decode and discard the given number of bytes, which were already
+     * written during an earlier attempt.
+     */
+    private void skipDecoded(InputStream in, long count) throws StopRequestException {
+        final ByteBuffer buffer = sBufferPool.acquire(Constants.BUFFER_SIZE);
+        try {
+            long skipped = 0;
+            while (skipped < count) {
+                checkPausedOrCanceled();
+
+                final int len;
+                try {
+                    len = in.read(buffer.array(), 0,
+                            (int) Math.min(buffer.capacity(), count - skipped));
+                } catch (IOException e) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                }
+                if (len == -1) {
+                    throw new StopRequestException(
+                            STATUS_CANNOT_RESUME, "Decoded content shorter than before");
+                }
+                skipped += len;
+            }
+        } finally {
+            sBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Read and discard the response body, so that the connection can be
+     * reused for the next request.
+     *
+     * @return if the body ended within {@link Constants#KEEP_ALIVE_DRAIN_BYTES}.
+     */
+    private static boolean drainBody(HttpURLConnection conn) {
+        InputStream in = null;
+        final ByteBuffer buffer = sBufferPool.acquire(Constants.BUFFER_SIZE);
+        try {
+            in = conn.getInputStream();
+            long drained = 0;
+            int len;
+            while ((len = in.read(buffer.array(), 0, buffer.capacity())) != -1) {
+                drained += len;
+                if (drained > Constants.KEEP_ALIVE_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+            sBufferPool.release(buffer);
+        }
+    }
+
     /**
      * Transfer data from the given connection to the destination file.
      */
@@ -447,7 +808,11 @@ public class DownloadThread implements Runnable {
         final boolean isEncodingChunked = "chunked".equalsIgnoreCase(
                 conn.getHeaderField("Transfer-Encoding"));
 
-        final boolean finishKnown = hasLength || isConnectionClose || isEncodingChunked;
+        // Encoded bodies carry their own end marker
+        final boolean isContentEncoded = mInfoDelta.mContentEncoding != null;
+
+        final boolean finishKnown = hasLength || isConnectionClose || isEncodingChunked
+                || isContentEncoded;
         if (!finishKnown) {
             throw new StopRequestException(
                     STATUS_CANNOT_RESUME, "can't know size of download, giving up");
@@ -458,13 +823,22 @@ public class DownloadThread implements Runnable {
         FileDescriptor outFd = null;
         InputStream in = null;
         OutputStream out = null;
+        Preallocator prealloc = null;
+        HttpURLConnection handoffConn = null;
         try {
             try {
                 in = conn.getInputStream();
+                if (isContentEncoded) {
+                    in = decodeContent(in, mInfoDelta.mContentEncoding);
+                }
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
             }
 
+            if (isContentEncoded && mInfoDelta.mCurrentBytes > 0) {
+                skipDecoded(in, mInfoDelta.mCurrentBytes);
+            }
+
             try {
                 outPfd = mContext.getContentResolver()
                         .openFileDescriptor(mInfo.getAllDownloadsUri(), "rw");
@@ -477,25 +851,9 @@ public class DownloadThread implements Runnable {
                     out = new ParcelFileDescriptor.AutoCloseOutputStream(outPfd);
                 }
 
-                // Pre-flight disk space requirements, when known
-                if (mInfoDelta.mTotalBytes > 0) {
-                    final long curSize = Os.fstat(outFd).st_size;
-                    final long newBytes = mInfoDelta.mTotalBytes - curSize;
-
-                    StorageUtils.ensureAvailableSpace(mContext, outFd, newBytes);
-
-                    try {
-                        // We found enough space, so claim it for ourselves
-                        Os.posix_fallocate(outFd, 0, mInfoDelta.mTotalBytes);
-                    } catch (ErrnoException e) {
-                        if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
-                            Log.w(TAG, "fallocate() not supported; falling back to ftruncate()");
-                            Os.ftruncate(outFd, mInfoDelta.mTotalBytes);
-                        } else {
-                            throw e;
-                        }
-                    }
-                }
+                prealloc = new Preallocator(mContext, outFd, mInfoDelta.mTotalBytes,
+                        !(out instanceof DrmOutputStream));
+                prealloc.start();
 
                 // Move into place to begin writing
                 Os.lseek(outFd, mInfoDelta.mCurrentBytes, OsConstants.SEEK_SET);
@@ -507,13 +865,43 @@ public class DownloadThread implements Runnable {
             }
 
             // Start streaming data, periodically watch for pause/cancel
-            // commands and checking disk space as needed.
-            transferData(in, out, outFd);
+            // commands and checking disk space as needed. When the network
+            // goes away midway, pick up on the next one with the destination
+            // still open and without walking redirects again.
+            final boolean canHandoff = !isContentEncoded && mInfoDelta.mETag != null
+                    && !(out instanceof DrmOutputStream);
+            int handoffs = 0;
+            while (true) {
+                try {
+                    if (Constants.USE_CHANNEL_TRANSFER && out instanceof FileOutputStream) {
+                        transferData(in, ((FileOutputStream) out).getChannel(), outFd, prealloc);
+                    } else {
+                        transferData(in, out, outFd, prealloc);
+                    }
+                    break;
+                } catch (StopRequestException e) {
+                    if (!canHandoff || handoffs++ >= Constants.MAX_HANDOFFS) {
+                        throw e;
+                    }
+                    final HttpURLConnection next = handoff(conn.getURL(), e);
+                    IoUtils.closeQuietly(in);
+                    if (handoffConn != null) handoffConn.disconnect();
+                    handoffConn = next;
+                    try {
+                        in = next.getInputStream();
+                    } catch (IOException ioe) {
+                        throw e;
+                    }
+                }
+            }
 
             try {
+                prealloc.finish(mInfoDelta.mCurrentBytes);
                 if (out instanceof DrmOutputStream) {
                     ((DrmOutputStream) out).finish();
                 }
+            } catch (ErrnoException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
             } catch (IOException e) {
                 throw new StopRequestException(STATUS_FILE_ERROR, e);
             }
@@ -524,10 +912,14 @@ public class DownloadThread implements Runnable {
             }
 
             IoUtils.closeQuietly(in);
+            if (handoffConn != null) handoffConn.disconnect();
 
             try {
                 if (out != null) out.flush();
-                if (outFd != null) outFd.sync();
+                if (outFd != null) {
+                    outFd.sync();
+                    mInfoDelta.mVerifiedBytes = mInfoDelta.mCurrentBytes;
+                }
             } catch (IOException e) {
             } finally {
                 IoUtils.closeQuietly(out);
@@ -535,12 +927,95 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Wait for a usable network after the one a transfer was using went
+     * away, then ask the given final URL for the rest of the response.
+     *
+     * @return connection whose body continues at our current offset.
+     * @throws StopRequestException the given failure, when it wasn't caused
+     *             by losing the network or we couldn't resume in time.
+     */
+    private HttpURLConnection handoff(URL url, StopRequestException cause)
+            throws StopRequestException {
+        if (cause.getFinalStatus() != STATUS_HTTP_DATA_ERROR) {
+            throw cause;
+        }
+        final NetworkInfo info = mSystemFacade.getActiveNetworkInfo(mInfo.mUid);
+        if (info != null && info.isConnected() && info.getType() == mNetworkType) {
+            // Network is still intact, so the server is to blame
+            throw cause;
+        }
+
+        logDebug("Network lost; waiting to resume at " + mInfoDelta.mCurrentBytes);
+        final long start = SystemClock.elapsedRealtime();
+
+        // Let other downloads use the host while we can't
+        final HostRegistry hosts = HostRegistry.getInstance();
+        final String host = url.getHost();
+        hosts.release(host);
+        mHostAcquired = false;
+
+        // Wake up on connectivity changes, checking now and then for ones
+        // that aren't broadcast, like policy, and for pause or cancel
+        final NetworkChangeStats changes = NetworkChangeStats.getInstance();
+        int generation = changes.getGeneration();
+        while (mInfo.checkCanUseNetwork(mInfoDelta.mTotalBytes) != NetworkState.OK) {
+            checkPausedOrCanceled();
+            final long remaining = Constants.HANDOFF_TIMEOUT
+                    - (SystemClock.elapsedRealtime() - start);
+            if (remaining <= 0) {
+                throw cause;
+            }
+            try {
+                changes.awaitChange(generation,
+                        Math.min(remaining, Constants.HANDOFF_POLL_INTERVAL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw cause;
+            }
+            generation = changes.getGeneration();
+        }
+
+        if (hosts.acquire(host, mSystemFacade.currentTimeMillis()) > 0) {
+            // Circuit opened while we waited; retry along with the others
+            throw cause;
+        }
+        mHostAcquired = true;
+
+        final NetworkInfo next = mSystemFacade.getActiveNetworkInfo(mInfo.mUid);
+        if (next != null) {
+            mNetworkType = next.getType();
+        }
+
+        HttpURLConnection conn = null;
+        try {
+            conn = openConnection(url);
+            addRequestHeaders(conn, true);
+
+            final String expectedRange = "bytes " + mInfoDelta.mCurrentBytes + "-";
+            final String contentRange = conn.getHeaderField("Content-Range");
+            if (conn.getResponseCode() != HTTP_PARTIAL || contentRange == null
+                    || !contentRange.startsWith(expectedRange)) {
+                conn.disconnect();
+                throw cause;
+            }
+        } catch (IOException e) {
+            if (conn != null) conn.disconnect();
+            throw cause;
+        }
+
+        final long latency = SystemClock.elapsedRealtime() - start;
+        logDebug("Resumed on network type " + mNetworkType + " after " + latency + "ms");
+        NetworkChangeStats.getInstance().onHandoff(latency);
+        return conn;
+    }
+
     /**
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
      */
-    private void transferData(InputStream in, OutputStream out, FileDescriptor outFd)
-            throws StopRequestException {
+    private void transferData(InputStream in, OutputStream out, FileDescriptor outFd,
+            Preallocator prealloc) throws StopRequestException {
         final byte buffer[] = new byte[Constants.BUFFER_SIZE];
         while (true) {
             checkPausedOrCanceled();
@@ -558,17 +1033,11 @@ public class DownloadThread implements Runnable {
             }
 
             try {
-                // When streaming, ensure space before each write
-                if (mInfoDelta.mTotalBytes == -1) {
-                    final long curSize = Os.fstat(outFd).st_size;
-                    final long newBytes = (mInfoDelta.mCurrentBytes + len) - curSize;
-
-                    StorageUtils.ensureAvailableSpace(mContext, outFd, newBytes);
-                }
+                prealloc.ensureCapacity(mInfoDelta.mCurrentBytes + len);
 
                 out.write(buffer, 0, len);
 
-                mMadeProgress = true;
+                onProgress();
                 mInfoDelta.mCurrentBytes += len;
 
                 updateProgress(outFd);
@@ -586,6 +1055,736 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Transfer as much data as possible from the HTTP response to the
+     * destination file. A {@link BufferPipeline} reads ahead into pooled
+     * buffers on its own thread, while this thread writes each buffer at its
+     * absolute offset through the given channel and handles checkpoints, so
+     * that neither slow storage nor fsync() stall the socket.
+     */
+    private void transferData(InputStream in, FileChannel out, FileDescriptor outFd,
+            Preallocator prealloc) throws StopRequestException {
+        sBufferSizer.startTransfer();
+        final BufferPipeline pipeline = new BufferPipeline(in, sBufferPool,
+                Constants.TRANSFER_PIPELINE_DEPTH, sBufferSizer.getReadSize(mSpeed, mNetworkType),
+                "DownloadReader-" + mId) {
+            @Override
+            protected void onReaderStarted() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                TrafficStats.setThreadStatsTag(TrafficStats.TAG_SYSTEM_DOWNLOAD);
+                TrafficStats.setThreadStatsUid(mInfo.mUid);
+            }
+
+            @Override
+            protected void onReaderFinished() {
+                TrafficStats.clearThreadStatsTag();
+                TrafficStats.clearThreadStatsUid();
+            }
+        };
+        pipeline.start();
+
+        try {
+            while (true) {
+                checkPausedOrCanceled();
+
+                ByteBuffer buffer = null;
+                try {
+                    buffer = pipeline.poll(PIPELINE_POLL_MILLIS);
+                } catch (IOException e) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Interrupted reading response");
+                }
+
+                if (buffer == null) {
+                    if (pipeline.isEnded()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                try {
+                    final int len = buffer.remaining();
+                    prealloc.ensureCapacity(mInfoDelta.mCurrentBytes + len);
+
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer, mInfoDelta.mCurrentBytes + buffer.position());
+                    }
+
+                    onProgress();
+                    mInfoDelta.mCurrentBytes += len;
+
+                    updateProgress(outFd);
+
+                    // Grow or shrink reads as speed and concurrency change
+                    pipeline.setReadSize(sBufferSizer.getReadSize(mSpeed, mNetworkType));
+
+                } catch (ErrnoException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                } catch (IOException e) {
+                    throw new StopRequestException(STATUS_FILE_ERROR, e);
+                } finally {
+                    pipeline.recycle(buffer);
+                }
+            }
+        } finally {
+            pipeline.close();
+            sBufferSizer.finishTransfer();
+        }
+
+        // Finished without error; verify length if known
+        if (mInfoDelta.mTotalBytes != -1 && mInfoDelta.mCurrentBytes != mInfoDelta.mTotalBytes) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+        }
+    }
+
+    /**
+     * Return if the response on the given connection can be fetched as
+     * several parallel byte ranges.
+     */
+    private boolean isSegmentable(HttpURLConnection conn, boolean partial) {
+        if (Constants.SEGMENT_MAX_COUNT < 2 || mInfoDelta.mTotalBytes <= 0) {
+            return false;
+        }
+        // Small downloads are still worth resuming around any ranges that
+        // were already written.
+        if (mInfoDelta.mTotalBytes - mInfoDelta.mCurrentBytes < Constants.SEGMENT_MIN_TOTAL_BYTES
+                && !DownloadChunkMap.parse(mInfoDelta.mChunkMap)
+                        .hasRangesAfter(mInfoDelta.mCurrentBytes)) {
+            return false;
+        }
+        // Every range request is conditional on the ETag, so that all
+        // segments are guaranteed to come from the same entity.
+        if (mInfoDelta.mETag == null) {
+            return false;
+        }
+        if (DownloadDrmHelper.isDrmConvertNeeded(mInfoDelta.mMimeType)) {
+            return false;
+        }
+        // A partial response already proves that the server honors ranges
+        return partial || "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * Transfer data over several parallel connections, each fetching its own
+     * byte range and writing it at its own offset in the preallocated
+     * destination file. The given connection becomes the first segment.
+     */
+    private void transferSegmented(HttpURLConnection conn, URL url) throws StopRequestException {
+        ParcelFileDescriptor outPfd = null;
+        FileDescriptor outFd = null;
+        try {
+            try {
+                outPfd = mContext.getContentResolver()
+                        .openFileDescriptor(mInfo.getAllDownloadsUri(), "rw");
+                outFd = outPfd.getFileDescriptor();
+
+                // Segments write all over the file, so claim it in one go
+                final Preallocator prealloc = new Preallocator(
+                        mContext, outFd, mInfoDelta.mTotalBytes, true);
+                prealloc.start();
+                prealloc.ensureCapacity(mInfoDelta.mTotalBytes);
+
+            } catch (ErrnoException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+
+            new SegmentedTransfer(outFd, url).execute(conn);
+
+        } finally {
+            try {
+                if (outFd != null) {
+                    outFd.sync();
+                    mInfoDelta.mVerifiedBytes = mInfoDelta.mCurrentBytes;
+                }
+            } catch (IOException e) {
+            } finally {
+                IoUtils.closeQuietly(outPfd);
+            }
+        }
+    }
+
+    /**
+     * Write all the given bytes at an absolute offset, leaving the file
+     * position untouched so that several threads can share a descriptor.
+     */
+    private static void writeFully(FileDescriptor fd, byte[] buffer, int count, long offset)
+            throws ErrnoException, IOException {
+        int written = 0;
+        while (written < count) {
+            written += Os.pwrite(fd, buffer, written, count - written, offset + written);
+        }
+    }
+
+    /**
+     * Single download fetched as several {@link DownloadSegment}, each over
+     * its own connection on its own {@link SegmentWorker} thread. The calling
+     * thread coordinates: it watches for pause/cancel, checkpoints progress,
+     * and splits off more segments while measured throughput keeps improving.
+     * Only the calling thread touches {@link #mInfoDelta}.
+     * <p>
+     * When resuming, ranges already recorded in the {@link DownloadChunkMap}
+     * are skipped, and each remaining hole is fetched as its own segment.
+     * <p>
+     * When the server ignores a range request, no more segments are split off
+     * and the existing ones finish on their own, which degrades to a single
+     * stream.
+     */
+    private class SegmentedTransfer {
+        private final FileDescriptor mOutFd;
+        private final URL mUrl;
+        private final String mHost;
+        private final String mETag;
+        private final long mStartBytes;
+        private final long mTotalBytes;
+
+        /** Ranges written before this transfer started */
+        private final DownloadChunkMap mWritten;
+        /** Holes that still need a segment of their own */
+        private final ArrayList<DownloadChunkMap.Range> mPendingRanges = new ArrayList<>();
+
+        @GuardedBy("this")
+        private final ArrayList<DownloadSegment> mSegments = new ArrayList<>();
+        @GuardedBy("this")
+        private final ArrayList<SegmentWorker> mWorkers = new ArrayList<>();
+        @GuardedBy("this")
+        private StopRequestException mFailure;
+        @GuardedBy("this")
+        private boolean mSplitPending;
+        /**
+         * Whether the host connection acquired for the whole download is
+         * unused, so that a segment can take it without asking for more
+         */
+        @GuardedBy("this")
+        private boolean mPrimarySlotFree;
+
+        private volatile boolean mAborted;
+        private volatile boolean mSplitsDisabled;
+
+        private int mNextIndex;
+        private int mTargetCount = 2;
+        private int mPeakCount = 1;
+        private boolean mJudgePending;
+        private long mLastSplitTime;
+        private long mSpeedBeforeSplit;
+
+        public SegmentedTransfer(FileDescriptor outFd, URL url) {
+            mOutFd = outFd;
+            mUrl = url;
+            mHost = url.getHost();
+            mETag = mInfoDelta.mETag;
+            mStartBytes = mInfoDelta.mCurrentBytes;
+            mTotalBytes = mInfoDelta.mTotalBytes;
+
+            mWritten = DownloadChunkMap.parse(mInfoDelta.mChunkMap);
+            mWritten.add(0, mStartBytes);
+        }
+
+        public void execute(HttpURLConnection conn) throws StopRequestException {
+            logDebug("Starting segmented transfer");
+
+            // The given connection starts at our current offset, so it
+            // always serves the first hole.
+            mPendingRanges.addAll(
+                    mWritten.getMissingRanges(mStartBytes, mInfoDelta.mTotalBytes));
+            mLastSplitTime = SystemClock.elapsedRealtime();
+            if (mPendingRanges.isEmpty()) {
+                conn.disconnect();
+                synchronized (this) {
+                    mPrimarySlotFree = true;
+                }
+            } else {
+                final DownloadChunkMap.Range range = mPendingRanges.remove(0);
+                final DownloadSegment first = new DownloadSegment(
+                        mNextIndex++, range.start, range.end);
+                synchronized (this) {
+                    mSegments.add(first);
+                }
+                startWorker(new SegmentWorker(first, conn), SLOT_PRIMARY);
+            }
+
+            try {
+                while (true) {
+                    synchronized (this) {
+                        if (mFailure != null) {
+                            throw mFailure;
+                        }
+                        if (mWorkers.isEmpty() && mPendingRanges.isEmpty()) {
+                            break;
+                        }
+                        try {
+                            wait(SEGMENT_TICK_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new StopRequestException(
+                                    STATUS_HTTP_DATA_ERROR, "Interrupted waiting for segments");
+                        }
+                    }
+
+                    checkPausedOrCanceled();
+                    updateSegmentedProgress();
+                    maybeSplit();
+                }
+            } catch (StopRequestException e) {
+                abort();
+                throw e;
+            } finally {
+                // Nothing may touch the destination once we return
+                awaitWorkers();
+                checkpointChunkMap();
+            }
+
+            if (mInfoDelta.mCurrentBytes != mInfoDelta.mTotalBytes) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+            }
+        }
+
+        /**
+         * Record every range written so far in {@link DownloadInfoDelta},
+         * along with the contiguous prefix as the current bytes.
+         */
+        private void checkpointChunkMap() {
+            final DownloadChunkMap written = new DownloadChunkMap();
+            written.addAll(mWritten);
+            synchronized (this) {
+                for (DownloadSegment segment : mSegments) {
+                    written.add(segment.start, segment.getCurrent());
+                }
+            }
+            mInfoDelta.mChunkMap = written.toString();
+            mInfoDelta.mCurrentBytes = written.getContiguousEnd(0);
+        }
+
+        /**
+         * Checkpoint progress, which is written to the database along with
+         * the regular progress updates.
+         */
+        private void updateSegmentedProgress() throws StopRequestException {
+            long transferred = 0;
+            synchronized (this) {
+                for (DownloadSegment segment : mSegments) {
+                    transferred += segment.getTransferred();
+                }
+            }
+            checkpointChunkMap();
+            if (transferred > 0) {
+                onProgress();
+            }
+
+            try {
+                updateProgress(mOutFd, mStartBytes + transferred);
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+        }
+
+        /**
+         * Start fetching any pending holes, and then split the largest
+         * remaining segment in half when we're below our target number of
+         * segments. The target grows for as long as each new segment
+         * measurably improves overall throughput.
+         */
+        private void maybeSplit() {
+            if (!mPendingRanges.isEmpty()) {
+                final int active;
+                synchronized (this) {
+                    active = mWorkers.size();
+                }
+                if (active < mTargetCount) {
+                    final int slot = claimSlot();
+                    if (slot == SLOT_NONE) {
+                        return;
+                    }
+                    mPeakCount = Math.max(mPeakCount, active + 1);
+                    startWorker(new SegmentWorker(mPendingRanges.remove(0)), slot);
+                }
+                return;
+            }
+
+            if (mSplitsDisabled) {
+                return;
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mLastSplitTime < SEGMENT_SETTLE_MILLIS) {
+                return;
+            }
+
+            if (mJudgePending) {
+                mJudgePending = false;
+                if (mSpeed * 100 >= mSpeedBeforeSplit * SEGMENT_MIN_GAIN_PERCENT
+                        && mTargetCount < Constants.SEGMENT_MAX_COUNT) {
+                    mTargetCount++;
+                } else {
+                    logDebug("Settled on " + mPeakCount + " segments");
+                    mTargetCount = mPeakCount;
+                }
+            }
+
+            final DownloadSegment victim;
+            final int active;
+            synchronized (this) {
+                if (mSplitPending) {
+                    return;
+                }
+                active = mWorkers.size();
+                if (active >= mTargetCount) {
+                    return;
+                }
+
+                DownloadSegment largest = null;
+                for (DownloadSegment segment : mSegments) {
+                    if (largest == null || segment.getRemaining() > largest.getRemaining()) {
+                        largest = segment;
+                    }
+                }
+                victim = largest;
+            }
+
+            final long offset = victim.findSplitOffset(Constants.SEGMENT_MIN_BYTES);
+            if (offset == -1) {
+                return;
+            }
+
+            // Host is busy or failing; try again on a later tick
+            final int slot = claimSlot();
+            if (slot == SLOT_NONE) {
+                return;
+            }
+
+            // Only judge splits that grow us beyond any earlier count; other
+            // splits are just refilling after a segment finished.
+            if (active + 1 > mPeakCount) {
+                mPeakCount = active + 1;
+                mJudgePending = true;
+                mSpeedBeforeSplit = mSpeed;
+            }
+            mLastSplitTime = now;
+
+            synchronized (this) {
+                mSplitPending = true;
+            }
+            startWorker(new SegmentWorker(victim, offset, victim.getEnd()), slot);
+        }
+
+        /**
+         * Claim a host connection for another segment: the download's own
+         * when no segment is using it, otherwise an extra one while both
+         * {@link #sExtraSegments} and the host in {@link HostRegistry} have
+         * room.
+         */
+        private int claimSlot() {
+            synchronized (this) {
+                if (mPrimarySlotFree) {
+                    mPrimarySlotFree = false;
+                    return SLOT_PRIMARY;
+                }
+            }
+            if (!sExtraSegments.tryAcquire()) {
+                return SLOT_NONE;
+            }
+            if (!HostRegistry.getInstance().tryAcquireExtra(mHost)) {
+                sExtraSegments.release();
+                return SLOT_NONE;
+            }
+            return SLOT_EXTRA;
+        }
+
+        private void releaseSlot(int slot) {
+            if (slot == SLOT_EXTRA) {
+                HostRegistry.getInstance().release(mHost);
+                sExtraSegments.release();
+            } else if (slot == SLOT_PRIMARY) {
+                synchronized (this) {
+                    mPrimarySlotFree = true;
+                }
+            }
+        }
+
+        private void startWorker(SegmentWorker worker, int slot) {
+            worker.mSlot = slot;
+            synchronized (this) {
+                mWorkers.add(worker);
+            }
+            worker.mThread.start();
+        }
+
+        private void onWorkerFailed(StopRequestException e) {
+            synchronized (this) {
+                if (mFailure == null && !mAborted) {
+                    mFailure = e;
+                }
+                notifyAll();
+            }
+        }
+
+        private void onWorkerFinished(SegmentWorker worker) {
+            releaseSlot(worker.mSlot);
+            synchronized (this) {
+                mWorkers.remove(worker);
+                notifyAll();
+            }
+        }
+
+        private void onRangeOpened(DownloadSegment segment, boolean split) {
+            synchronized (this) {
+                if (segment != null) {
+                    mSegments.add(segment);
+                }
+                if (split) {
+                    mSplitPending = false;
+                }
+            }
+        }
+
+        /**
+         * Ask all workers to stop, closing their connections so that any
+         * blocked reads return promptly.
+         */
+        private void abort() {
+            mAborted = true;
+            synchronized (this) {
+                for (SegmentWorker worker : mWorkers) {
+                    final HttpURLConnection conn = worker.mConn;
+                    if (conn != null) conn.disconnect();
+                }
+            }
+        }
+
+        private void awaitWorkers() {
+            final ArrayList<SegmentWorker> workers;
+            synchronized (this) {
+                workers = new ArrayList<>(mWorkers);
+            }
+
+            boolean interrupted = false;
+            for (SegmentWorker worker : workers) {
+                while (worker.mThread.isAlive()) {
+                    try {
+                        worker.mThread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Fetch a single {@link DownloadSegment}. Workers created to split
+         * an existing segment only take over its tail once the server has
+         * confirmed the requested range.
+         * <p>
+         * Workers run on threads of their own rather than the download
+         * executor, which would deadlock once every executor thread waited
+         * on its own segments. They're bounded instead by
+         * {@link Constants#SEGMENT_MAX_COUNT} per download and
+         * {@link Constants#SEGMENT_MAX_EXTRA} overall.
+         */
+        private class SegmentWorker implements Runnable {
+            private final Thread mThread;
+            private final int mIndex;
+
+            private DownloadSegment mSegment;
+            private volatile HttpURLConnection mConn;
+            /** Host connection this worker holds, set before it starts */
+            private int mSlot = SLOT_NONE;
+
+            /** Segment whose tail we take over, or null when filling a hole */
+            private final DownloadSegment mVictim;
+            private final long mRangeStart;
+            private final long mRangeEnd;
+
+            public SegmentWorker(DownloadSegment segment, HttpURLConnection conn) {
+                mIndex = segment.index;
+                mSegment = segment;
+                mConn = conn;
+                mVictim = null;
+                mRangeStart = -1;
+                mRangeEnd = -1;
+                mThread = new Thread(this, buildThreadName());
+            }
+
+            public SegmentWorker(DownloadSegment victim, long splitOffset, long expectedEnd) {
+                mIndex = mNextIndex++;
+                mVictim = victim;
+                mRangeStart = splitOffset;
+                mRangeEnd = expectedEnd;
+                mThread = new Thread(this, buildThreadName());
+            }
+
+            public SegmentWorker(DownloadChunkMap.Range hole) {
+                mIndex = mNextIndex++;
+                mVictim = null;
+                mRangeStart = hole.start;
+                mRangeEnd = hole.end;
+                mThread = new Thread(this, buildThreadName());
+            }
+
+            private String buildThreadName() {
+                return "DownloadSegment-" + mId + "-" + mIndex;
+            }
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                TrafficStats.setThreadStatsTag(TrafficStats.TAG_SYSTEM_DOWNLOAD);
+                TrafficStats.setThreadStatsUid(mInfo.mUid);
+
+                try {
+                    if (mSegment == null) {
+                        mSegment = openRange();
+                    }
+                    if (mSegment != null) {
+                        transferSegment();
+                    }
+                } catch (StopRequestException e) {
+                    onWorkerFailed(e);
+                } catch (RuntimeException e) {
+                    onWorkerFailed(new StopRequestException(STATUS_UNKNOWN_ERROR, e));
+                } finally {
+                    final HttpURLConnection conn = mConn;
+                    if (conn != null) conn.disconnect();
+
+                    TrafficStats.clearThreadStatsTag();
+                    TrafficStats.clearThreadStatsUid();
+
+                    onWorkerFinished(this);
+                }
+            }
+
+            /**
+             * Request our range, and take it over once the server confirms
+             * it. Any trouble while splitting simply disables further
+             * splitting, since {@link #mVictim} still covers those bytes, but
+             * a hole that can't be fetched fails the whole transfer.
+             */
+            private DownloadSegment openRange() throws StopRequestException {
+                final boolean split = (mVictim != null);
+                final HostRegistry hosts = HostRegistry.getInstance();
+                DownloadSegment segment = null;
+                boolean responded = false;
+                try {
+                    final HttpURLConnection conn = openConnection(mUrl);
+                    mConn = conn;
+                    addRequestHeaders(conn, false);
+                    conn.setRequestProperty("Accept-Encoding", "identity");
+                    conn.addRequestProperty("If-Match", mETag);
+                    conn.addRequestProperty("Range",
+                            "bytes=" + mRangeStart + "-" + (mRangeEnd - 1));
+
+                    if (mAborted) {
+                        return null;
+                    }
+
+                    final int responseCode = conn.getResponseCode();
+                    responded = true;
+                    if (responseCode == HTTP_UNAVAILABLE || responseCode == HTTP_INTERNAL_ERROR) {
+                        hosts.recordFailure(mHost, 0, mSystemFacade.currentTimeMillis());
+                    } else {
+                        hosts.recordSuccess(mHost);
+                    }
+
+                    final String expectedRange = "bytes " + mRangeStart + "-"
+                            + (mRangeEnd - 1) + "/";
+                    final String contentRange = conn.getHeaderField("Content-Range");
+                    if (responseCode == HTTP_PARTIAL && contentRange != null
+                            && contentRange.startsWith(expectedRange)) {
+                        if (split) {
+                            segment = mVictim.splitAt(mIndex, mRangeStart, mRangeEnd);
+                        } else {
+                            segment = new DownloadSegment(mIndex, mRangeStart, mRangeEnd);
+                        }
+                    } else if (split) {
+                        mSplitsDisabled = true;
+                        logDebug("Server didn't honor range with " + responseCode
+                                + "; no more segments");
+                    } else if (responseCode == HTTP_PRECON_FAILED) {
+                        throw new StopRequestException(
+                                STATUS_CANNOT_RESUME, "Entity changed while resuming");
+                    } else {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                                "Server didn't honor range with " + responseCode);
+                    }
+                } catch (IOException e) {
+                    if (mAborted) {
+                        return null;
+                    }
+                    if (!responded && isHostFailure(e, mTotalBytes)) {
+                        // Same accounting as the download's own connection
+                        hosts.recordFailure(mHost, 0, mSystemFacade.currentTimeMillis());
+                    }
+                    if (split) {
+                        mSplitsDisabled = true;
+                        logDebug("Failed to open segment: " + e + "; no more segments");
+                    } else {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                    }
+                } finally {
+                    onRangeOpened(segment, split);
+                }
+                return segment;
+            }
+
+            private void transferSegment() throws StopRequestException {
+                InputStream in = null;
+                final ByteBuffer pooled = sBufferPool.acquire(Constants.BUFFER_SIZE);
+                try {
+                    try {
+                        in = mConn.getInputStream();
+                    } catch (IOException e) {
+                        throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+                    }
+
+                    final byte buffer[] = pooled.array();
+                    while (!mSegment.isFinished()) {
+                        if (mAborted) {
+                            return;
+                        }
+
+                        int len = -1;
+                        try {
+                            len = in.read(buffer);
+                        } catch (IOException e) {
+                            if (mAborted) {
+                                return;
+                            }
+                            throw new StopRequestException(
+                                    STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+                        }
+
+                        if (len == -1) {
+                            throw new StopRequestException(
+                                    STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+                        }
+
+                        // Our tail may have been stolen while reading, so
+                        // only write what still belongs to us.
+                        final int count = mSegment.reserve(len);
+                        try {
+                            writeFully(mOutFd, buffer, count, mSegment.getCurrent());
+                        } catch (ErrnoException e) {
+                            throw new StopRequestException(STATUS_FILE_ERROR, e);
+                        } catch (IOException e) {
+                            throw new StopRequestException(STATUS_FILE_ERROR, e);
+                        }
+                        mSegment.commit(count);
+                    }
+                } finally {
+                    IoUtils.closeQuietly(in);
+                    sBufferPool.release(pooled);
+                }
+            }
+        }
+    }
+
     /**
      * Called just before the thread finishes, regardless of status, to take any
      * necessary action on the downloaded file.
@@ -647,7 +1846,7 @@ public class DownloadThread implements Runnable {
      */
     private void checkConnectivity() throws StopRequestException {
         // checking connectivity will apply current policy
-        mPolicyDirty = false;
+        mInfo.mControlState.clear(ControlState.FLAG_POLICY_DIRTY);
 
         final NetworkState networkUsable = mInfo.checkCanUseNetwork(mInfoDelta.mTotalBytes);
         if (networkUsable != NetworkState.OK) {
@@ -668,18 +1867,22 @@ public class DownloadThread implements Runnable {
      * appropriately if it has been.
      */
     private void checkPausedOrCanceled() throws StopRequestException {
-        synchronized (mInfo) {
-            if (mInfo.mControl == Downloads.Impl.CONTROL_PAUSED) {
-                throw new StopRequestException(
-                        Downloads.Impl.STATUS_PAUSED_BY_APP, "download paused by owner");
-            }
-            if (mInfo.mStatus == Downloads.Impl.STATUS_CANCELED || mInfo.mDeleted) {
-                throw new StopRequestException(Downloads.Impl.STATUS_CANCELED, "download canceled");
-            }
+        // Called for every read, so the common case is a single volatile read
+        final int state = mInfo.mControlState.get();
+        if (state == 0) {
+            return;
+        }
+
+        if ((state & ControlState.FLAG_PAUSED) != 0) {
+            throw new StopRequestException(
+                    Downloads.Impl.STATUS_PAUSED_BY_APP, "download paused by owner");
+        }
+        if ((state & (ControlState.FLAG_CANCELED | ControlState.FLAG_DELETED)) != 0) {
+            throw new StopRequestException(Downloads.Impl.STATUS_CANCELED, "download canceled");
         }
 
         // if policy has been changed, trigger connectivity check
-        if (mPolicyDirty) {
+        if ((state & ControlState.FLAG_POLICY_DIRTY) != 0) {
             checkConnectivity();
         }
     }
@@ -688,8 +1891,19 @@ public class DownloadThread implements Runnable {
      * Report download progress through the database if necessary.
      */
     private void updateProgress(FileDescriptor outFd) throws IOException, StopRequestException {
+        updateProgress(outFd, mInfoDelta.mCurrentBytes);
+    }
+
+    /**
+     * Report download progress through the database if necessary.
+     *
+     * @param currentBytes total bytes transferred so far, used for measuring
+     *            speed. May be ahead of {@link DownloadInfoDelta#mCurrentBytes}
+     *            when ranges are fetched out of order.
+     */
+    private void updateProgress(FileDescriptor outFd, long currentBytes)
+            throws IOException, StopRequestException {
         final long now = SystemClock.elapsedRealtime();
-        final long currentBytes = mInfoDelta.mCurrentBytes;
 
         final long sampleDelta = now - mSpeedSampleStart;
         if (sampleDelta > 500) {
@@ -714,11 +1928,22 @@ public class DownloadThread implements Runnable {
         final long bytesDelta = currentBytes - mLastUpdateBytes;
         final long timeDelta = now - mLastUpdateTime;
         if (bytesDelta > Constants.MIN_PROGRESS_STEP && timeDelta > Constants.MIN_PROGRESS_TIME) {
-            // fsync() to ensure that current progress has been flushed to disk,
-            // so we can always resume based on latest database information.
-            outFd.sync();
+            // Only claim durable bytes as verified, so that we always resume
+            // from data that made it to disk. Written ranges have no
+            // watermark of their own, so they're always synced.
+            if (mInfoDelta.mChunkMap != null || sDurability.shouldSync(
+                    currentBytes - mLastSyncBytes, now - mLastSyncTime)) {
+                final long syncStart = SystemClock.elapsedRealtime();
+                sDurability.sync(outFd);
+                ConcurrencyController.recordDiskLatency(
+                        SystemClock.elapsedRealtime() - syncStart);
+                mInfoDelta.mVerifiedBytes = mInfoDelta.mCurrentBytes;
+
+                mLastSyncBytes = currentBytes;
+                mLastSyncTime = now;
+            }
 
-            mInfoDelta.writeToDatabaseOrThrow();
+            mInfoDelta.checkpointToDatabaseOrThrow();
 
             mLastUpdateBytes = currentBytes;
             mLastUpdateTime = now;
@@ -748,8 +1973,10 @@ public class DownloadThread implements Runnable {
             mInfoDelta.mMimeType = Intent.normalizeMimeType(conn.getContentType());
         }
 
+        // Content-Length of an encoded body says nothing about decoded size
+        mInfoDelta.mContentEncoding = getContentEncoding(conn);
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
-        if (transferEncoding == null) {
+        if (transferEncoding == null && mInfoDelta.mContentEncoding == null) {
             mInfoDelta.mTotalBytes = getHeaderFieldLong(conn, "Content-Length", -1);
         } else {
             mInfoDelta.mTotalBytes = -1;
@@ -793,18 +2020,23 @@ public class DownloadThread implements Runnable {
         }
 
         // Defeat transparent gzip compression, since it doesn't allow us to
-        // easily resume partial downloads.
-        conn.setRequestProperty("Accept-Encoding", "identity");
+        // easily resume partial downloads. When requested, we ask for
+        // compressed content ourselves and decode it in transferData().
+        conn.setRequestProperty("Accept-Encoding", mCompress ? "gzip, deflate" : "identity");
 
-        // Defeat connection reuse, since otherwise servers may continue
-        // streaming large downloads after cancelled.
-        conn.setRequestProperty("Connection", "close");
+        // Defeat connection reuse unless requested, since otherwise servers
+        // may continue streaming large downloads after cancelled.
+        conn.setRequestProperty("Connection", mKeepAlive ? "keep-alive" : "close");
 
         if (resuming) {
             if (mInfoDelta.mETag != null) {
                 conn.addRequestProperty("If-Match", mInfoDelta.mETag);
             }
-            conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
+            // Encoded bodies can't be entered midway, so they're fetched
+            // again from the start and decoded up to our current offset.
+            if (mInfoDelta.mContentEncoding == null) {
+                conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
+            }
         }
     }
 
@@ -825,20 +2057,20 @@ public class DownloadThread implements Runnable {
         public void onUidRulesChanged(int uid, int uidRules) {
             // caller is NPMS, since we only register with them
             if (uid == mInfo.mUid) {
-                mPolicyDirty = true;
+                mInfo.mControlState.set(ControlState.FLAG_POLICY_DIRTY);
             }
         }
 
         @Override
         public void onMeteredIfacesChanged(String[] meteredIfaces) {
             // caller is NPMS, since we only register with them
-            mPolicyDirty = true;
+            mInfo.mControlState.set(ControlState.FLAG_POLICY_DIRTY);
         }
 
         @Override
         public void onRestrictBackgroundChanged(boolean restrictBackground) {
             // caller is NPMS, since we only register with them
-            mPolicyDirty = true;
+            mInfo.mControlState.set(ControlState.FLAG_POLICY_DIRTY);
         }
     };
 
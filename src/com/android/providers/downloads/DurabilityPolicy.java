@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Decides how destination data is made durable before a progress checkpoint
+ * is written to the database. Each checkpoint records the bytes known to be
+ * durable in {@link Constants#VERIFIED_BYTES}, and downloads only ever
+ * resume from that watermark.
+ */
+abstract class DurabilityPolicy {
+    /** Full fsync() at every checkpoint */
+    public static final int TYPE_FSYNC = 0;
+    /** fdatasync() at every checkpoint, skipping metadata not needed to read data back */
+    public static final int TYPE_FDATASYNC = 1;
+    /** fdatasync() only once enough data or time has accumulated */
+    public static final int TYPE_DEFERRED = 2;
+
+    public static DurabilityPolicy create(int type) {
+        switch (type) {
+            case TYPE_FSYNC:
+                return new DurabilityPolicy() {
+                    @Override
+                    public void sync(FileDescriptor fd) throws IOException {
+                        fd.sync();
+                    }
+                };
+            case TYPE_FDATASYNC:
+                return new DataSyncPolicy();
+            case TYPE_DEFERRED:
+                return new DataSyncPolicy() {
+                    @Override
+                    public boolean shouldSync(long bytesSinceSync, long millisSinceSync) {
+                        return bytesSinceSync >= Constants.DEFERRED_SYNC_BYTES
+                                || millisSinceSync >= Constants.DEFERRED_SYNC_TIME;
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown durability policy " + type);
+        }
+    }
+
+    /**
+     * Make all data written to the given file so far durable.
+     */
+    public abstract void sync(FileDescriptor fd) throws IOException;
+
+    /**
+     * Return if a checkpoint should sync first, given the data written and
+     * time passed since the last sync. Checkpoints that don't sync leave the
+     * verified watermark behind.
+     */
+    public boolean shouldSync(long bytesSinceSync, long millisSinceSync) {
+        return true;
+    }
+
+    private static class DataSyncPolicy extends DurabilityPolicy {
+        @Override
+        public void sync(FileDescriptor fd) throws IOException {
+            try {
+                Os.fdatasync(fd);
+            } catch (ErrnoException e) {
+                throw e.rethrowAsIOException();
+            }
+        }
+    }
+}
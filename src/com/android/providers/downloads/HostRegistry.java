@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide view of the hosts downloads connect to, shared by all
+ * {@link DownloadThread} instances. Counts every open connection, including
+ * extra segments, under the host it ends up at after redirects. Trips a
+ * circuit breaker when a host keeps failing, so that its other downloads
+ * wait together instead of each failing on its own.
+ * <p>
+ * Each download gets its first connection whenever the circuit allows,
+ * since {@link DownloadScheduler} already keeps downloads to a busy host
+ * queued. Extra segment connections are only granted while the host stays
+ * under {@link Constants#MAX_CONNECTIONS_PER_HOST}.
+ * <p>
+ * An open circuit rejects every download to the host until it expires,
+ * after which a single probe download is let through. Its success closes the
+ * circuit for everyone; its failure opens it again.
+ */
+class HostRegistry {
+    private static final HostRegistry sInstance = new HostRegistry();
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    private static class HostState {
+        int state = STATE_CLOSED;
+        int active;
+        int failures;
+        long openUntil;
+        boolean probing;
+    }
+
+    @GuardedBy("this")
+    private final HashMap<String, HostState> mHosts = new HashMap<>();
+
+    public static HostRegistry getInstance() {
+        return sInstance;
+    }
+
+    private static String normalize(String host) {
+        return host.toLowerCase(Locale.US);
+    }
+
+    @GuardedBy("this")
+    private HostState getLocked(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    /**
+     * Ask to connect to the given host, which is only refused while its
+     * circuit is open. When allowed, the caller must
+     * {@link #release(String)} once done with the connection.
+     *
+     * @return 0 when the connection may proceed, otherwise the time to wait
+     *         before asking again, in ms.
+     */
+    public synchronized long acquire(String host, long now) {
+        final HostState state = getLocked(normalize(host));
+
+        if (state.state == STATE_OPEN) {
+            if (now < state.openUntil) {
+                return state.openUntil - now;
+            }
+            state.state = STATE_HALF_OPEN;
+            state.probing = false;
+        }
+
+        if (state.state == STATE_HALF_OPEN) {
+            if (state.probing) {
+                return Constants.HOST_PROBE_WAIT;
+            }
+            state.probing = true;
+        }
+
+        state.active++;
+        return 0;
+    }
+
+    /**
+     * Ask to open an extra connection to the given host, such as another
+     * segment of a download already connected to it. Only granted while the
+     * circuit is closed and the host has room left. When granted, the caller
+     * must {@link #release(String)} once done with the connection.
+     */
+    public synchronized boolean tryAcquireExtra(String host) {
+        final HostState state = getLocked(normalize(host));
+        if (state.state != STATE_CLOSED || state.active >= Constants.MAX_CONNECTIONS_PER_HOST) {
+            return false;
+        }
+        state.active++;
+        return true;
+    }
+
+    /**
+     * Return the number of connections open to the given host.
+     */
+    public synchronized int getActive(String host) {
+        final HostState state = mHosts.get(normalize(host));
+        return (state != null) ? state.active : 0;
+    }
+
+    /**
+     * Release a connection allowed by {@link #acquire(String, long)} or
+     * {@link #tryAcquireExtra(String)}.
+     */
+    public synchronized void release(String host) {
+        host = normalize(host);
+        final HostState state = mHosts.get(host);
+        if (state == null) return;
+
+        state.active = Math.max(0, state.active - 1);
+        if (state.state == STATE_HALF_OPEN) {
+            // Probe ended without a verdict; let another one try
+            state.probing = false;
+        }
+        if (state.active == 0 && state.state == STATE_CLOSED && state.failures == 0) {
+            mHosts.remove(host);
+        }
+    }
+
+    /**
+     * Record that the given host responded, which closes its circuit.
+     */
+    public synchronized void recordSuccess(String host) {
+        final HostState state = mHosts.get(normalize(host));
+        if (state == null) return;
+
+        state.state = STATE_CLOSED;
+        state.failures = 0;
+        state.probing = false;
+    }
+
+    /**
+     * Record that the given host failed to respond usefully. The circuit
+     * opens once failures pile up, when a probe fails, or right away when
+     * the host asked us to back off.
+     *
+     * @param retryAfter time the host asked us to wait, in ms, or 0.
+     */
+    public synchronized void recordFailure(String host, long retryAfter, long now) {
+        final HostState state = getLocked(normalize(host));
+        state.failures++;
+
+        if (retryAfter > 0 || state.state == STATE_HALF_OPEN
+                || state.failures >= Constants.HOST_CIRCUIT_FAILURES) {
+            state.state = STATE_OPEN;
+            state.openUntil = now + Math.max(retryAfter, Constants.HOST_CIRCUIT_OPEN_TIME);
+            state.probing = false;
+        }
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("HostRegistry:");
+        pw.increaseIndent();
+        for (Map.Entry<String, HostState> entry : mHosts.entrySet()) {
+            final HostState state = entry.getValue();
+            pw.printPair("host", entry.getKey());
+            pw.printPair("state", state.state);
+            pw.printPair("active", state.active);
+            pw.printPair("failures", state.failures);
+            pw.printPair("openUntil", state.openUntil);
+            pw.println();
+        }
+        pw.decreaseIndent();
+    }
+}
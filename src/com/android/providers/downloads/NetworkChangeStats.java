@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Measures how long downloads take to get going again after the network
+ * changes: the time from a connectivity change to the first byte any
+ * download receives afterwards, and the time running downloads wait to
+ * hand off to a new network. Also lets those running downloads block until
+ * the next change instead of polling for it.
+ */
+class NetworkChangeStats {
+    private static final NetworkChangeStats sInstance = new NetworkChangeStats();
+
+    /** Time of the last network change not yet followed by data, or 0 */
+    @GuardedBy("this")
+    private long mChangedAt;
+
+    /** Number of network changes seen so far */
+    @GuardedBy("this")
+    private int mGeneration;
+
+    @GuardedBy("this")
+    private int mCount;
+    @GuardedBy("this")
+    private long mTotalLatency;
+    @GuardedBy("this")
+    private long mMaxLatency;
+    @GuardedBy("this")
+    private long mLastLatency;
+
+    @GuardedBy("this")
+    private int mHandoffCount;
+    @GuardedBy("this")
+    private long mHandoffTotalLatency;
+
+    public static NetworkChangeStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record that the network changed at the given
+     * {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    public synchronized void onNetworkChanged(long now) {
+        mChangedAt = now;
+        mGeneration++;
+        notifyAll();
+    }
+
+    /**
+     * Return a token identifying the network changes seen so far, to pass
+     * to {@link #awaitChange(int, long)}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Block until the network changes after the given
+     * {@link #getGeneration()}, or the given time in ms has passed.
+     *
+     * @return If the network changed.
+     */
+    public synchronized boolean awaitChange(int generation, long timeout)
+            throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        long remaining = timeout;
+        while (mGeneration == generation && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+        return mGeneration != generation;
+    }
+
+    /**
+     * Record that a download received its first bytes at the given
+     * {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    public synchronized void onFirstByte(long now) {
+        if (mChangedAt == 0) return;
+
+        final long latency = Math.max(0, now - mChangedAt);
+        mChangedAt = 0;
+        mCount++;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+        mLastLatency = latency;
+
+        if (Constants.LOGV) {
+            Log.v(TAG, "First byte " + latency + "ms after network change");
+        }
+    }
+
+    /**
+     * Record that a running download moved onto a new network, after
+     * waiting the given time for it.
+     */
+    public synchronized void onHandoff(long latency) {
+        mHandoffCount++;
+        mHandoffTotalLatency += latency;
+    }
+
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("NetworkChangeStats:");
+        pw.increaseIndent();
+        pw.printPair("count", mCount);
+        pw.printPair("lastLatency", mLastLatency);
+        pw.printPair("maxLatency", mMaxLatency);
+        pw.printPair("avgLatency", (mCount > 0) ? mTotalLatency / mCount : 0);
+        pw.printPair("handoffs", mHandoffCount);
+        pw.printPair("avgHandoffLatency",
+                (mHandoffCount > 0) ? mHandoffTotalLatency / mHandoffCount : 0);
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static android.provider.Downloads.Impl.STATUS_INSUFFICIENT_SPACE_ERROR;
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Claims disk space for a destination file in growing extents ahead of the
+ * write position, instead of all at once before the first write or on every
+ * write. Free space is only checked again once an extent is used up, so
+ * writes inside an extent cost no extra system calls.
+ * <p>
+ * When the length of the download is known, the whole remainder is checked
+ * up front so that we fail before transferring anything. Otherwise any space
+ * claimed past the final length is trimmed by {@link #finish(long)}.
+ */
+class Preallocator {
+    private final Context mContext;
+    private final FileDescriptor mFd;
+    private final long mTotalBytes;
+    /** File length matches bytes transferred, so it can be trimmed */
+    private final boolean mTrim;
+
+    /** Claim extents with fallocate(), instead of only checking free space */
+    private boolean mClaim;
+
+    /** End of the space already checked, and claimed if requested */
+    private long mAllocatedEnd = -1;
+
+    /**
+     * @param totalBytes final length of the file, or -1 when unknown.
+     * @param claim if space should be claimed in the file itself. Must be
+     *            false when the bytes written differ from the bytes
+     *            transferred, such as for DRM conversion.
+     */
+    public Preallocator(Context context, FileDescriptor fd, long totalBytes, boolean claim) {
+        mContext = context;
+        mFd = fd;
+        mTotalBytes = totalBytes;
+        mTrim = claim;
+        mClaim = claim;
+    }
+
+    /**
+     * Pre-flight disk space requirements, when known.
+     */
+    public void start() throws ErrnoException, IOException, StopRequestException {
+        mAllocatedEnd = Os.fstat(mFd).st_size;
+
+        if (mTotalBytes > 0) {
+            StorageUtils.ensureAvailableSpace(mContext, mFd, mTotalBytes - mAllocatedEnd);
+        }
+    }
+
+    /**
+     * Make sure that space up to the given offset has been claimed, claiming
+     * another extent when needed.
+     */
+    public void ensureCapacity(long end) throws ErrnoException, IOException, StopRequestException {
+        if (end <= mAllocatedEnd) {
+            return;
+        }
+
+        final long newEnd = getExtentEnd(mAllocatedEnd, end, mTotalBytes);
+        if (mTotalBytes <= 0) {
+            StorageUtils.ensureAvailableSpace(mContext, mFd, newEnd - mAllocatedEnd);
+        }
+        if (mClaim) {
+            claim(mAllocatedEnd, newEnd - mAllocatedEnd);
+        }
+        mAllocatedEnd = newEnd;
+    }
+
+    private void claim(long offset, long length) throws ErrnoException, StopRequestException {
+        try {
+            Os.posix_fallocate(mFd, offset, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
+                Log.w(TAG, "fallocate() not supported; only checking free space");
+                mClaim = false;
+            } else if (e.errno == OsConstants.ENOSPC) {
+                throw new StopRequestException(STATUS_INSUFFICIENT_SPACE_ERROR,
+                        "Ran out of space while claiming " + length + " bytes");
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Trim any space claimed beyond the given final length of the file,
+     * including extents claimed by earlier attempts.
+     */
+    public void finish(long length) throws ErrnoException {
+        if (mTrim && mTotalBytes <= 0 && mAllocatedEnd > length) {
+            Os.ftruncate(mFd, length);
+        }
+    }
+
+    /**
+     * Return the end of the next extent to claim. Extents double in size
+     * with the space already claimed, within the configured bounds, and
+     * never run past a known length.
+     */
+    static long getExtentEnd(long allocatedEnd, long wantedEnd, long totalBytes) {
+        final long extent = Math.max(Constants.PREALLOCATE_EXTENT_MIN,
+                Math.min(Constants.PREALLOCATE_EXTENT_MAX, allocatedEnd));
+        long end = Math.max(wantedEnd, allocatedEnd + extent);
+        if (totalBytes > 0) {
+            end = Math.min(end, Math.max(totalBytes, wantedEnd));
+        }
+        return end;
+    }
+}
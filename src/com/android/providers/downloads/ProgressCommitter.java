@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.RemoteException;
+import android.provider.Downloads;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Collects progress checkpoints from all running downloads and writes them
+ * to {@link DownloadProvider} together, in one transaction per tick, instead
+ * of each download paying for its own transaction and round of change
+ * notifications. Only the latest checkpoint of each download is kept. When
+ * the provider lives in our process, checkpoints are handed to it directly
+ * instead of going through {@link ContentResolver}.
+ * <p>
+ * Other updates are written immediately, and always land after any older
+ * checkpoint of the same download.
+ */
+class ProgressCommitter {
+    private static final int MSG_FLUSH = 1;
+
+    /**
+     * Progress of a single download, covering the columns that change while
+     * its data is transferred. Status is left out, since it's written right
+     * away through {@link #update} whenever it changes.
+     */
+    public static class Checkpoint {
+        public final long id;
+        public final Uri uri;
+        public final long currentBytes;
+        public final long totalBytes;
+        public final String eTag;
+        public final String chunkMap;
+        public final long verifiedBytes;
+        public final long lastModified;
+
+        public Checkpoint(long id, Uri uri, long currentBytes, long totalBytes,
+                String eTag, String chunkMap, long verifiedBytes, long lastModified) {
+            this.id = id;
+            this.uri = uri;
+            this.currentBytes = currentBytes;
+            this.totalBytes = totalBytes;
+            this.eTag = eTag;
+            this.chunkMap = chunkMap;
+            this.verifiedBytes = verifiedBytes;
+            this.lastModified = lastModified;
+        }
+
+        public ContentValues toContentValues() {
+            final ContentValues values = new ContentValues();
+            values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, currentBytes);
+            values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, totalBytes);
+            values.put(Constants.ETAG, eTag);
+            values.put(Constants.CHUNK_MAP, chunkMap);
+            values.put(Constants.VERIFIED_BYTES, verifiedBytes);
+            values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, lastModified);
+            return values;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /**
+     * Held while writing, so that an immediate update can't be overtaken by
+     * an older checkpoint that is already being flushed.
+     */
+    private final Object mWriteLock = new Object();
+
+    /** Provider to hand checkpoints to directly, when it's in our process */
+    @GuardedBy("mWriteLock")
+    private ContentProviderClient mClient;
+    @GuardedBy("mWriteLock")
+    private DownloadProvider mLocalProvider;
+
+    /** Set once shut down, after which no client is held across writes */
+    @GuardedBy("mWriteLock")
+    private boolean mShutdown;
+
+    /** Latest unwritten checkpoint of each download */
+    @GuardedBy("this")
+    private final HashMap<Long, Checkpoint> mPending = new HashMap<>();
+
+    /** Downloads whose last checkpoint found their row deleted or missing */
+    @GuardedBy("this")
+    private final HashSet<Long> mMissing = new HashSet<>();
+
+    public ProgressCommitter(Context context) {
+        mResolver = context.getContentResolver();
+
+        mThread = new HandlerThread(TAG + "-ProgressCommitter");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                flush();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Queue a progress checkpoint, to be written with the next tick unless
+     * its download was deleted by then. Replaces any checkpoint still pending
+     * for the download.
+     *
+     * @return false if an earlier checkpoint found the row deleted or
+     *         missing, in which case nothing is queued.
+     */
+    public boolean checkpoint(Checkpoint checkpoint) {
+        synchronized (this) {
+            if (mMissing.remove(checkpoint.id)) {
+                return false;
+            }
+            mPending.put(checkpoint.id, checkpoint);
+            if (mHandler.hasMessages(MSG_FLUSH)) {
+                return true;
+            }
+        }
+
+        if (!mHandler.sendEmptyMessageDelayed(MSG_FLUSH, Constants.PROGRESS_COMMIT_INTERVAL)) {
+            // We've been shut down, so write directly
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Immediately write the given update for a download, dropping any of its
+     * pending checkpoints, which this update supersedes.
+     *
+     * @return the number of rows updated.
+     */
+    public int update(long id, Uri uri, ContentValues values, String where) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.remove(id);
+                mMissing.remove(id);
+            }
+            return mResolver.update(uri, values, where, null);
+        }
+    }
+
+    /**
+     * Write all pending checkpoints in a single batch.
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            final ArrayList<Checkpoint> checkpoints;
+            synchronized (this) {
+                mHandler.removeMessages(MSG_FLUSH);
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                checkpoints = new ArrayList<>(mPending.values());
+                mPending.clear();
+            }
+
+            final int[] counts;
+            try {
+                counts = write(checkpoints);
+            } catch (RemoteException | OperationApplicationException e) {
+                // Running downloads will checkpoint again shortly
+                Log.w(TAG, "Failed to write " + checkpoints.size() + " progress checkpoints", e);
+                return;
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        mMissing.add(checkpoints.get(i).id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the given checkpoints in a single transaction.
+     *
+     * @return the number of rows updated by each checkpoint.
+     */
+    @GuardedBy("mWriteLock")
+    private int[] write(ArrayList<Checkpoint> checkpoints)
+            throws RemoteException, OperationApplicationException {
+        if (mClient == null && !mShutdown) {
+            mClient = mResolver.acquireContentProviderClient(Downloads.Impl.AUTHORITY);
+            if (mClient != null) {
+                final ContentProvider provider = mClient.getLocalContentProvider();
+                if (provider instanceof DownloadProvider) {
+                    mLocalProvider = (DownloadProvider) provider;
+                }
+            }
+        }
+        if (mLocalProvider != null) {
+            return mLocalProvider.writeCheckpoints(checkpoints);
+        }
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>(checkpoints.size());
+        for (Checkpoint checkpoint : checkpoints) {
+            ops.add(ContentProviderOperation.newUpdate(checkpoint.uri)
+                    .withValues(checkpoint.toContentValues())
+                    .withSelection(Downloads.Impl.COLUMN_DELETED + " == '0'", null).build());
+        }
+
+        final ContentProviderResult[] results = mResolver.applyBatch(
+                Downloads.Impl.AUTHORITY, ops);
+        final int[] counts = new int[results.length];
+        for (int i = 0; i < results.length; i++) {
+            counts[i] = (results[i].count != null) ? results[i].count : 0;
+        }
+        return counts;
+    }
+
+    /**
+     * Write any pending checkpoints and stop the tick thread. Later
+     * checkpoints are written directly through {@link ContentResolver}, so
+     * that no provider client is left acquired.
+     */
+    public void shutdown() {
+        mThread.quit();
+        flush();
+
+        synchronized (mWriteLock) {
+            mShutdown = true;
+            if (mClient != null) {
+                mClient.release();
+                mClient = null;
+                mLocalProvider = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+
+/**
+ * Downloads waiting to retry, ordered by the time of their next attempt.
+ * Backed by a binary min-heap indexed by download ID, so scheduling,
+ * rescheduling and cancelling a download costs O(log n), and finding the
+ * downloads that are due costs O(due log n) instead of a scan over every
+ * download.
+ * <p>
+ * Not thread safe; callers must provide their own locking.
+ */
+class RetryScheduler {
+    private static final long[] EMPTY = new long[0];
+
+    private static class Entry {
+        final long id;
+        long time;
+        int index;
+
+        Entry(long id) {
+            this.id = id;
+        }
+    }
+
+    private final DownloadRegistry<Entry> mEntries = new DownloadRegistry<>();
+    private Entry[] mHeap = new Entry[16];
+    private int mSize;
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long id) {
+        return mEntries.containsKey(id);
+    }
+
+    /**
+     * Schedule the given download to be attempted at the given time,
+     * replacing any earlier schedule.
+     */
+    public void schedule(long id, long time) {
+        Entry entry = mEntries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            entry.time = time;
+            mEntries.put(id, entry);
+            if (mSize == mHeap.length) {
+                mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            }
+            entry.index = mSize++;
+            mHeap[entry.index] = entry;
+            siftUp(entry.index);
+        } else if (time < entry.time) {
+            entry.time = time;
+            siftUp(entry.index);
+        } else if (time > entry.time) {
+            entry.time = time;
+            siftDown(entry.index);
+        }
+    }
+
+    /**
+     * Forget any schedule for the given download.
+     */
+    public void cancel(long id) {
+        final Entry entry = mEntries.remove(id);
+        if (entry != null) {
+            removeAt(entry.index);
+        }
+    }
+
+    /**
+     * Return the time of the earliest attempt, or {@link Long#MAX_VALUE}
+     * when nothing is scheduled.
+     */
+    public long getNextTime() {
+        return (mSize > 0) ? mHeap[0].time : Long.MAX_VALUE;
+    }
+
+    /**
+     * Remove and return the downloads due at the given time, earliest first.
+     */
+    public long[] pollDue(long now) {
+        int count = 0;
+        long[] due = EMPTY;
+        while (mSize > 0 && mHeap[0].time <= now) {
+            final Entry entry = mHeap[0];
+            mEntries.remove(entry.id);
+            removeAt(0);
+
+            if (count == due.length) {
+                due = Arrays.copyOf(due, Math.max(4, count * 2));
+            }
+            due[count++] = entry.id;
+        }
+        return (count == due.length) ? due : Arrays.copyOf(due, count);
+    }
+
+    private void removeAt(int index) {
+        final Entry last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (index == mSize) return;
+
+        final Entry removed = mHeap[index];
+        mHeap[index] = last;
+        last.index = index;
+        if (last.time < removed.time) {
+            siftUp(index);
+        } else {
+            siftDown(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        final Entry entry = mHeap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (mHeap[parent].time <= entry.time) break;
+            move(parent, index);
+            index = parent;
+        }
+        mHeap[index] = entry;
+        entry.index = index;
+    }
+
+    private void siftDown(int index) {
+        final Entry entry = mHeap[index];
+        final int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < mSize && mHeap[child + 1].time < mHeap[child].time) {
+                child++;
+            }
+            if (entry.time <= mHeap[child].time) break;
+            move(child, index);
+            index = child;
+        }
+        mHeap[index] = entry;
+        entry.index = index;
+    }
+
+    private void move(int from, int to) {
+        mHeap[to] = mHeap[from];
+        mHeap[to].index = to;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("RetryScheduler:");
+        pw.increaseIndent();
+        pw.printPair("size", mSize);
+        pw.printPair("nextTime", getNextTime());
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.provider.Downloads;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Collection;
+
+/**
+ * Downloads partitioned by the condition they're waiting on, so that an
+ * event only has to consider the downloads it can affect. Downloads waiting
+ * to retry are tracked by {@link RetryScheduler} instead, ordered by time.
+ * <p>
+ * Partitions reflect the status last read back from the database, and are
+ * updated whenever a download is read back. Not thread safe; callers must
+ * provide their own locking.
+ */
+class StatusPartitions {
+    public static final int PARTITION_NONE = -1;
+    /**
+     * New, pending or interrupted downloads, and those waiting for storage,
+     * which are considered on every evaluating pass
+     */
+    public static final int PARTITION_RUNNABLE = 0;
+    /** Downloads waiting for any usable network */
+    public static final int PARTITION_WAITING_FOR_NETWORK = 1;
+    /** Downloads too large for mobile, waiting for Wi-Fi */
+    public static final int PARTITION_QUEUED_FOR_WIFI = 2;
+
+    private static final int PARTITION_COUNT = 3;
+
+    private final DownloadRegistry<DownloadInfo>[] mPartitions;
+
+    @SuppressWarnings("unchecked")
+    public StatusPartitions() {
+        mPartitions = new DownloadRegistry[PARTITION_COUNT];
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            mPartitions[i] = new DownloadRegistry<>();
+        }
+    }
+
+    /**
+     * Return the partition of downloads with the given status.
+     */
+    public static int partitionOf(int status) {
+        switch (status) {
+            case 0:
+            case Downloads.Impl.STATUS_PENDING:
+            case Downloads.Impl.STATUS_RUNNING:
+            case Downloads.Impl.STATUS_DEVICE_NOT_FOUND_ERROR:
+                return PARTITION_RUNNABLE;
+            case Downloads.Impl.STATUS_WAITING_FOR_NETWORK:
+                return PARTITION_WAITING_FOR_NETWORK;
+            case Downloads.Impl.STATUS_QUEUED_FOR_WIFI:
+                return PARTITION_QUEUED_FOR_WIFI;
+            default:
+                return PARTITION_NONE;
+        }
+    }
+
+    /**
+     * Move the given download into the partition of its current status.
+     */
+    public void update(DownloadInfo info) {
+        final int partition = partitionOf(info.mStatus);
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            if (i == partition) {
+                mPartitions[i].put(info.mId, info);
+            } else {
+                mPartitions[i].remove(info.mId);
+            }
+        }
+    }
+
+    public void remove(long id) {
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            mPartitions[i].remove(id);
+        }
+    }
+
+    public Collection<DownloadInfo> get(int partition) {
+        return mPartitions[partition].values();
+    }
+
+    public int size(int partition) {
+        return mPartitions[partition].size();
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("StatusPartitions:");
+        pw.increaseIndent();
+        pw.printPair("runnable", size(PARTITION_RUNNABLE));
+        pw.printPair("waitingForNetwork", size(PARTITION_WAITING_FOR_NETWORK));
+        pw.printPair("queuedForWifi", size(PARTITION_QUEUED_FOR_WIFI));
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
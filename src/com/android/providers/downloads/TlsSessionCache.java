@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.util.Log;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLS client session cache shared by all downloads, so that repeated
+ * connections to the same host and port resume an earlier session instead
+ * of performing a full handshake. The cache is bounded in size, and sessions
+ * expire after {@link Constants#TLS_SESSION_TIMEOUT}.
+ */
+class TlsSessionCache {
+    private static TlsSessionCache sInstance;
+
+    private final SSLSocketFactory mFactory;
+    private final SSLSessionContext mSessions;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public static synchronized TlsSessionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new TlsSessionCache(
+                    Constants.TLS_SESSION_CACHE_SIZE, Constants.TLS_SESSION_TIMEOUT);
+        }
+        return sInstance;
+    }
+
+    private TlsSessionCache(int size, int timeoutSeconds) {
+        SSLSocketFactory factory = null;
+        SSLSessionContext sessions = null;
+        try {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(size);
+            sessions.setSessionTimeout(timeoutSeconds);
+            factory = new CountingSocketFactory(context.getSocketFactory());
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Failed to create TLS context; using platform default", e);
+        }
+        mFactory = factory;
+        mSessions = sessions;
+    }
+
+    /**
+     * Route TLS handshakes of the given connection through this cache.
+     */
+    public void apply(URLConnection conn) {
+        if (mFactory != null && conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(mFactory);
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("TlsSessionCache:");
+        pw.increaseIndent();
+        pw.printPair("hits", mHits.get());
+        pw.printPair("misses", mMisses.get());
+        if (mSessions != null) {
+            pw.printPair("size", mSessions.getSessionCacheSize());
+            pw.printPair("timeout", mSessions.getSessionTimeout());
+        }
+        pw.println();
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Factory that counts whether each handshake resumed a cached session.
+     * A resumed session was created before its socket was.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        public CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long created = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        if (event.getSession().getCreationTime() < created) {
+                            mHits.incrementAndGet();
+                        } else {
+                            mMisses.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return track(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return track(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return track(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
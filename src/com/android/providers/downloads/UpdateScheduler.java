@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Decides when requested {@link DownloadService} update passes run, so that
+ * a storm of provider notifications results in at most one pass per
+ * interval. Urgent requests, such as a new or deleted download, run as soon
+ * as possible, and pull in any pass already pending.
+ * <p>
+ * All times are in the {@link android.os.SystemClock#uptimeMillis()} base
+ * used by {@link android.os.Handler}.
+ */
+class UpdateScheduler {
+    private static final long NONE = -1;
+
+    private final long mMinInterval;
+
+    /** Start time of the last pass, or {@link #NONE} */
+    @GuardedBy("this")
+    private long mLastPass = NONE;
+    /** Time the pending pass is scheduled for, or {@link #NONE} */
+    @GuardedBy("this")
+    private long mScheduled = NONE;
+
+    @GuardedBy("this")
+    private long mRequested;
+    @GuardedBy("this")
+    private long mExecuted;
+    @GuardedBy("this")
+    private long mCoalesced;
+
+    public UpdateScheduler(long minInterval) {
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * Request an update pass.
+     *
+     * @return the delay in ms after which the caller should run a pass,
+     *         replacing any pass it has pending, or -1 if the pending pass
+     *         already covers this request.
+     */
+    public synchronized long request(boolean urgent, long now) {
+        mRequested++;
+
+        long target = now;
+        if (!urgent && mLastPass != NONE) {
+            target = Math.max(now, mLastPass + mMinInterval);
+        }
+
+        if (mScheduled != NONE) {
+            mCoalesced++;
+            if (mScheduled <= target) {
+                return -1;
+            }
+        }
+
+        mScheduled = target;
+        return target - now;
+    }
+
+    /**
+     * Record that a pass is starting, which covers every request so far.
+     */
+    public synchronized void onPassStarted(long now) {
+        mExecuted++;
+        mLastPass = now;
+        mScheduled = NONE;
+    }
+
+    public synchronized long getRequestedCount() {
+        return mRequested;
+    }
+
+    public synchronized long getExecutedCount() {
+        return mExecuted;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("UpdateScheduler:");
+        pw.increaseIndent();
+        pw.printPair("requested", mRequested);
+        pw.printPair("executed", mExecuted);
+        pw.printPair("coalesced", mCoalesced);
+        pw.println();
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This test exercises the read-ahead stage of {@link BufferPipeline}, and
+ * measures pooled channel transfers against a fresh buffer per attempt.
+ */
+@SmallTest
+public class BufferPipelineTest extends TestCase {
+    private static final String TAG = "BufferPipelineTest";
+
+    private static final long TIMEOUT = 5000;
+
+    private static final int BENCHMARK_ATTEMPTS = 200;
+    private static final long BENCHMARK_ATTEMPT_BYTES = 4 * 1024 * 1024;
+
+    public void testDeliversAllBytesInOrder() throws Exception {
+        final byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        final BufferPool pool = new BufferPool(1024, 4096, 65536);
+        final BufferPipeline pipeline = new BufferPipeline(
+                new ByteArrayInputStream(data), pool, 2, 1024, "test");
+        pipeline.start();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (!pipeline.isEnded()) {
+            final ByteBuffer buffer = pipeline.poll(TIMEOUT);
+            if (buffer != null) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                pipeline.recycle(buffer);
+
+                // Switching sizes midway must not lose or reorder data
+                pipeline.setReadSize(4096);
+            }
+        }
+        pipeline.close();
+
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertTrue(pool.getPooledCount() >= 2);
+    }
+
+    public void testDecodedStreamDeliversWithoutFilling() throws Exception {
+        final PipedInputStream source = new PipedInputStream(65536);
+        final PipedOutputStream sink = new PipedOutputStream(source);
+        final DeflaterOutputStream encoder = new DeflaterOutputStream(sink, true);
+
+        final BufferPipeline pipeline = new BufferPipeline(new InflaterInputStream(source),
+                new BufferPool(1024, 65536, 262144), 2, 65536, "test");
+        pipeline.start();
+        try {
+            // Less than a buffer arrives, and the rest is still on its way
+            final byte[] data = new byte[1000];
+            Arrays.fill(data, (byte) 7);
+            encoder.write(data);
+            encoder.flush();
+
+            int received = 0;
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (received < data.length && System.currentTimeMillis() < deadline) {
+                final ByteBuffer buffer = pipeline.poll(100);
+                if (buffer != null) {
+                    received += buffer.remaining();
+                    pipeline.recycle(buffer);
+                }
+            }
+            assertEquals(data.length, received);
+        } finally {
+            encoder.close();
+            pipeline.close();
+        }
+    }
+
+    public void testCloseStopsBlockedReader() throws Exception {
+        final BlockingInputStream source = new BlockingInputStream();
+        final BufferPool pool = new BufferPool(1024, 1024, 4096);
+
+        final BufferPipeline pipeline = new BufferPipeline(source, pool, 2, 1024, "test");
+        pipeline.start();
+        assertTrue(source.mReading.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // Reader is blocked inside the stream holding a buffer, and only
+        // closing the stream lets it go
+        pipeline.close();
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    public void testPropagatesReadFailure() throws Exception {
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("boom");
+            }
+        };
+
+        final BufferPipeline pipeline = new BufferPipeline(
+                in, new BufferPool(1024, 1024, 4096), 2, 1024, "test");
+        pipeline.start();
+        try {
+            pipeline.poll(TIMEOUT);
+            fail("Expected failure");
+        } catch (IOException expected) {
+        }
+        assertTrue(pipeline.isEnded());
+        pipeline.close();
+    }
+
+    /**
+     * Stream whose reads block, ignoring interrupts, until it's closed.
+     */
+    private static class BlockingInputStream extends InputStream {
+        final CountDownLatch mReading = new CountDownLatch(1);
+        final CountDownLatch mClosed = new CountDownLatch(1);
+
+        @Override
+        public int read() throws IOException {
+            mReading.countDown();
+            while (true) {
+                try {
+                    mClosed.await();
+                    throw new IOException("closed");
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            mClosed.countDown();
+        }
+    }
+
+    /**
+     * Compare throughput, allocations and GCs of the transfer loop with
+     * {@link Constants#USE_CHANNEL_TRANSFER} off, which allocates a buffer
+     * for every attempt, against pooled buffers and channel writes.
+     */
+    @LargeTest
+    public void testPooledAgainstPerAttemptBuffers() throws Exception {
+        final File file = File.createTempFile(TAG, null);
+        final BufferPool pool = new BufferPool(Constants.BUFFER_SIZE,
+                Constants.TRANSFER_BUFFER_MAX_SIZE, Constants.TRANSFER_BUFFER_POOL_BYTES);
+        try {
+            // Warm up both paths, which also fills the pool
+            runPerAttempt(file, 1);
+            runPooled(file, pool, 1);
+
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocSize();
+            Debug.resetGlobalGcInvocationCount();
+            long start = System.nanoTime();
+            runPerAttempt(file, BENCHMARK_ATTEMPTS);
+            final long perAttemptNanos = System.nanoTime() - start;
+            final int perAttemptBytes = Debug.getGlobalAllocSize();
+            final int perAttemptGcs = Debug.getGlobalGcInvocationCount();
+
+            Debug.resetGlobalAllocSize();
+            Debug.resetGlobalGcInvocationCount();
+            start = System.nanoTime();
+            runPooled(file, pool, BENCHMARK_ATTEMPTS);
+            final long pooledNanos = System.nanoTime() - start;
+            final int pooledBytes = Debug.getGlobalAllocSize();
+            final int pooledGcs = Debug.getGlobalGcInvocationCount();
+            Debug.stopAllocCounting();
+
+            final long totalMb = BENCHMARK_ATTEMPTS * BENCHMARK_ATTEMPT_BYTES / (1024 * 1024);
+            Log.i(TAG, "per-attempt: " + (totalMb * 1000000000L / perAttemptNanos) + "MB/s, "
+                    + perAttemptBytes + " bytes allocated, " + perAttemptGcs + " GCs");
+            Log.i(TAG, "pooled: " + (totalMb * 1000000000L / pooledNanos) + "MB/s, "
+                    + pooledBytes + " bytes allocated, " + pooledGcs + " GCs");
+
+            // Every attempt of the old loop allocates its own buffer
+            assertTrue(perAttemptBytes >= BENCHMARK_ATTEMPTS * Constants.BUFFER_SIZE);
+            assertTrue(pooledBytes < perAttemptBytes);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void runPerAttempt(File file, int attempts) throws IOException {
+        for (int i = 0; i < attempts; i++) {
+            final InputStream in = new FakeInputStream(BENCHMARK_ATTEMPT_BYTES);
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[Constants.BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void runPooled(File file, BufferPool pool, int attempts) throws Exception {
+        for (int i = 0; i < attempts; i++) {
+            final BufferPipeline pipeline = new BufferPipeline(
+                    new FakeInputStream(BENCHMARK_ATTEMPT_BYTES), pool,
+                    Constants.TRANSFER_PIPELINE_DEPTH, Constants.TRANSFER_BUFFER_MAX_SIZE, TAG);
+            final FileOutputStream out = new FileOutputStream(file);
+            final FileChannel channel = out.getChannel();
+            pipeline.start();
+            try {
+                long position = 0;
+                while (!pipeline.isEnded()) {
+                    final ByteBuffer buffer = pipeline.poll(TIMEOUT);
+                    if (buffer == null) continue;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    } finally {
+                        pipeline.recycle(buffer);
+                    }
+                }
+            } finally {
+                pipeline.close();
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This test exercises reuse of buffers in {@link BufferPool}.
+ */
+@SmallTest
+public class BufferPoolTest extends TestCase {
+
+    public void testReusesReleasedBuffers() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 8192, 4096);
+        final ByteBuffer first = pool.acquire(1024);
+        first.put((byte) 1);
+        pool.release(first);
+
+        final ByteBuffer second = pool.acquire(1024);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1024, second.remaining());
+    }
+
+    public void testSizeClasses() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 8192, 65536);
+        assertEquals(1024, pool.acquire(1).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(100000).capacity());
+
+        final ByteBuffer small = pool.acquire(1024);
+        pool.release(small);
+        assertNotSame(small, pool.acquire(2048));
+        assertSame(small, pool.acquire(1000));
+    }
+
+    public void testCapacityLimited() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 8192, 2048);
+        final ByteBuffer a = pool.acquire(1024);
+        final ByteBuffer b = pool.acquire(1024);
+        final ByteBuffer c = pool.acquire(1024);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getPooledCount());
+        assertEquals(2048, pool.getPooledBytes());
+    }
+
+    public void testRejectsForeignBuffers() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 8192, 65536);
+        pool.release(ByteBuffer.allocate(1500));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        pool.release(null);
+        assertEquals(0, pool.getPooledCount());
+    }
+}
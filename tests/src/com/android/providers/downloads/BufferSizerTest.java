@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static android.net.ConnectivityManager.TYPE_BLUETOOTH;
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises read sizing decisions in {@link BufferSizer}.
+ */
+@SmallTest
+public class BufferSizerTest extends TestCase {
+    private static final int MIN = 8192;
+    private static final long BUDGET = 2 * 1024 * 1024;
+
+    public void testScalesWithSpeed() throws Exception {
+        final BufferSizer sizer = new BufferSizer(MIN, BUDGET, 4);
+        sizer.startTransfer();
+
+        // 2G-class speeds stay at the minimum
+        assertEquals(MIN, sizer.getReadSize(20 * 1024, TYPE_WIFI));
+        // 1MB/s gathers 50ms worth of data
+        assertEquals(1024 * 1024 * 50 / 1000, sizer.getReadSize(1024 * 1024, TYPE_WIFI));
+        // Gigabit speeds are capped per network type
+        assertEquals(256 * 1024, sizer.getReadSize(100 * 1024 * 1024, TYPE_WIFI));
+        assertEquals(64 * 1024, sizer.getReadSize(100 * 1024 * 1024, TYPE_MOBILE));
+        assertEquals(16 * 1024, sizer.getReadSize(100 * 1024 * 1024, TYPE_BLUETOOTH));
+    }
+
+    public void testSharesBudget() throws Exception {
+        final BufferSizer sizer = new BufferSizer(MIN, BUDGET, 4);
+        for (int i = 0; i < 8; i++) {
+            sizer.startTransfer();
+        }
+        // 2MB across 8 transfers of 4 buffers each
+        assertEquals(64 * 1024, sizer.getReadSize(100 * 1024 * 1024, TYPE_WIFI));
+
+        for (int i = 0; i < 7; i++) {
+            sizer.finishTransfer();
+        }
+        assertEquals(256 * 1024, sizer.getReadSize(100 * 1024 * 1024, TYPE_WIFI));
+    }
+
+    public void testNeverBelowMinimum() throws Exception {
+        final BufferSizer sizer = new BufferSizer(MIN, 1024, 4);
+        sizer.startTransfer();
+        assertEquals(MIN, sizer.getReadSize(100 * 1024 * 1024, TYPE_WIFI));
+        assertEquals(MIN, sizer.getReadSize(0, TYPE_WIFI));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises {@link ConcurrencyController} against a simulated
+ * transport, driven by a fake clock.
+ */
+@SmallTest
+public class ConcurrencyControllerTest extends TestCase {
+    private static final long MB = 1024 * 1024;
+    private static final int CEILING = 8;
+
+    private FakeSystemFacade mSystemFacade;
+
+    /**
+     * Link where each connection gets a fixed speed, until the link itself
+     * is saturated.
+     */
+    private static class FakeTransport {
+        final long mPerConnection;
+        final long mLinkSpeed;
+
+        FakeTransport(long perConnection, long linkSpeed) {
+            mPerConnection = perConnection;
+            mLinkSpeed = linkSpeed;
+        }
+
+        long getThroughput(int connections) {
+            return Math.min(mLinkSpeed, connections * mPerConnection);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSystemFacade = new FakeSystemFacade();
+        mSystemFacade.setUp();
+    }
+
+    /**
+     * Sample the given transport with downloads always waiting, returning
+     * the highest limit reached.
+     */
+    private int run(ConcurrencyController controller, FakeTransport transport, int samples) {
+        int highest = controller.getLimit();
+        for (int i = 0; i < samples; i++) {
+            mSystemFacade.incrementTimeMillis(Constants.CONCURRENCY_SAMPLE_INTERVAL);
+            final long throughput = transport.getThroughput(controller.getLimit());
+            highest = Math.max(highest, controller.onSample(
+                    mSystemFacade.currentTimeMillis(), throughput, 0, true));
+        }
+        return highest;
+    }
+
+    public void testGrowsWhileThroughputRises() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1, CEILING, 2);
+        run(controller, new FakeTransport(MB, 5 * MB), 200);
+
+        // Settles on the link's capacity, probing one above it now and then
+        final int limit = controller.getLimit();
+        assertTrue("limit " + limit, limit == 5 || limit == 6);
+    }
+
+    public void testRespectsCeiling() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1, CEILING, 2);
+        final int highest = run(controller, new FakeTransport(MB, 100 * MB), 200);
+        assertEquals(CEILING, highest);
+        assertEquals(CEILING, controller.getLimit());
+    }
+
+    public void testBacksOffOnPlateau() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1, CEILING, 3);
+        final FakeTransport transport = new FakeTransport(MB, 3 * MB);
+
+        // Probe one higher, find no gain, and step back
+        assertEquals(4, controller.onSample(0, transport.getThroughput(3), 0, true));
+        assertEquals(3, controller.onSample(Constants.CONCURRENCY_SAMPLE_INTERVAL,
+                transport.getThroughput(4), 0, true));
+
+        // Holds before probing again
+        assertEquals(3, controller.onSample(2 * Constants.CONCURRENCY_SAMPLE_INTERVAL,
+                transport.getThroughput(3), 0, true));
+        assertEquals(4, controller.onSample(Constants.CONCURRENCY_HOLD_TIME
+                + 2 * Constants.CONCURRENCY_SAMPLE_INTERVAL, transport.getThroughput(3), 0, true));
+    }
+
+    public void testBacksOffOnDiskLatency() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1, CEILING, 6);
+        assertEquals(3, controller.onSample(0, 6 * MB,
+                Constants.CONCURRENCY_MAX_DISK_LATENCY, true));
+        assertEquals(1, controller.onSample(Constants.CONCURRENCY_SAMPLE_INTERVAL, 3 * MB,
+                Constants.CONCURRENCY_MAX_DISK_LATENCY * 4, true));
+        assertEquals(1, controller.onSample(2 * Constants.CONCURRENCY_SAMPLE_INTERVAL, MB,
+                Constants.CONCURRENCY_MAX_DISK_LATENCY, true));
+    }
+
+    public void testIdleHoldsSteady() throws Exception {
+        final ConcurrencyController controller = new ConcurrencyController(1, CEILING, 3);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(3, controller.onSample(i * Constants.CONCURRENCY_SAMPLE_INTERVAL,
+                    MB, 0, false));
+        }
+    }
+
+    public void testRecordDiskLatency() throws Exception {
+        ConcurrencyController.drainDiskLatency();
+        ConcurrencyController.recordDiskLatency(20);
+        ConcurrencyController.recordDiskLatency(700);
+        ConcurrencyController.recordDiskLatency(40);
+        assertEquals(700, ConcurrencyController.drainDiskLatency());
+        assertEquals(0, ConcurrencyController.drainDiskLatency());
+    }
+}
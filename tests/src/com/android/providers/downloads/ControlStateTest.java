@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.ControlState.FLAG_CANCELED;
+import static com.android.providers.downloads.ControlState.FLAG_DELETED;
+import static com.android.providers.downloads.ControlState.FLAG_PAUSED;
+import static com.android.providers.downloads.ControlState.FLAG_POLICY_DIRTY;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises publishing and clearing flags in {@link ControlState},
+ * and measures the cost of polling it from a transfer loop.
+ */
+@SmallTest
+public class ControlStateTest extends TestCase {
+    private static final String TAG = "ControlStateTest";
+
+    /** Reads of 8KB each, as the transfer loop polls once per read */
+    private static final int CHECKS_PER_MB = 128;
+    private static final int BENCHMARK_MB = 100000;
+
+    public void testPublish() throws Exception {
+        final ControlState state = new ControlState();
+        assertEquals(0, state.get());
+
+        state.publish(true, false, false);
+        assertEquals(FLAG_PAUSED, state.get());
+
+        state.publish(false, true, true);
+        assertEquals(FLAG_CANCELED | FLAG_DELETED, state.get());
+
+        state.publish(false, false, false);
+        assertEquals(0, state.get());
+    }
+
+    public void testPublishKeepsPolicyDirty() throws Exception {
+        final ControlState state = new ControlState();
+        state.set(FLAG_POLICY_DIRTY);
+        state.publish(true, false, false);
+        assertEquals(FLAG_PAUSED | FLAG_POLICY_DIRTY, state.get());
+
+        state.publish(false, false, false);
+        assertEquals(FLAG_POLICY_DIRTY, state.get());
+
+        state.clear(FLAG_POLICY_DIRTY);
+        assertEquals(0, state.get());
+    }
+
+    public void testSetAndClear() throws Exception {
+        final ControlState state = new ControlState();
+        state.set(FLAG_CANCELED);
+        state.set(FLAG_CANCELED);
+        assertEquals(FLAG_CANCELED, state.get());
+
+        state.clear(FLAG_PAUSED);
+        assertEquals(FLAG_CANCELED, state.get());
+        state.clear(FLAG_CANCELED);
+        assertEquals(0, state.get());
+    }
+
+    /**
+     * Compare the old check, which locked the whole info to read three
+     * fields, against a single read of the published state.
+     */
+    @LargeTest
+    public void testCheckOverheadPerMegabyte() throws Exception {
+        final LockedInfo info = new LockedInfo();
+        final ControlState state = new ControlState();
+        final int checks = CHECKS_PER_MB * BENCHMARK_MB;
+
+        // Warm up both paths before measuring
+        int stops = runLocked(info, checks) + runAtomic(state, checks);
+
+        long start = System.nanoTime();
+        stops += runLocked(info, checks);
+        final long lockedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        stops += runAtomic(state, checks);
+        final long atomicNanos = System.nanoTime() - start;
+
+        assertEquals(0, stops);
+        Log.i(TAG, "locked check: " + (lockedNanos / BENCHMARK_MB) + "ns/MB, atomic check: "
+                + (atomicNanos / BENCHMARK_MB) + "ns/MB");
+    }
+
+    private static int runLocked(LockedInfo info, int checks) {
+        int stops = 0;
+        for (int i = 0; i < checks; i++) {
+            synchronized (info) {
+                if (info.mControl == 1 || info.mStatus == 490 || info.mDeleted) {
+                    stops++;
+                }
+            }
+        }
+        return stops;
+    }
+
+    private static int runAtomic(ControlState state, int checks) {
+        int stops = 0;
+        for (int i = 0; i < checks; i++) {
+            if (state.get() != 0) {
+                stops++;
+            }
+        }
+        return stops;
+    }
+
+    private static class LockedInfo {
+        int mControl;
+        int mStatus;
+        boolean mDeleted;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.provider.Downloads;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * This test exercises recording of changed downloads in {@link DirtyDownloads}.
+ */
+@SmallTest
+public class DirtyDownloadsTest extends TestCase {
+
+    public void testStartsAllChanged() throws Exception {
+        final DirtyDownloads dirty = new DirtyDownloads();
+        assertTrue(dirty.drain().all);
+        assertFalse(dirty.drain().all);
+    }
+
+    public void testDrainResets() throws Exception {
+        final DirtyDownloads dirty = new DirtyDownloads();
+        dirty.drain();
+
+        dirty.markChanged(1, false);
+        dirty.markChanged(2, true);
+        final DirtyDownloads.Changes changes = dirty.drain();
+        assertEquals(2, changes.getIds().size());
+        assertFalse(changes.isProgressOnly());
+
+        final DirtyDownloads.Changes empty = dirty.drain();
+        assertTrue(empty.getIds().isEmpty());
+        assertFalse(empty.isProgressOnly());
+    }
+
+    public void testProgressOnly() throws Exception {
+        final DirtyDownloads dirty = new DirtyDownloads();
+        dirty.drain();
+
+        dirty.markChanged(1, true);
+        dirty.markChanged(2, true);
+        assertTrue(dirty.drain().isProgressOnly());
+
+        // Any other change to the same download wins
+        dirty.markChanged(1, true);
+        dirty.markChanged(1, false);
+        dirty.markChanged(1, true);
+        final DirtyDownloads.Changes changes = dirty.drain();
+        assertFalse(changes.isProgressOnly());
+        assertEquals(1, changes.getIds().size());
+    }
+
+    public void testAllChangedNotProgressOnly() throws Exception {
+        final DirtyDownloads dirty = new DirtyDownloads();
+        dirty.drain();
+
+        dirty.markChanged(1, true);
+        dirty.markAllChanged();
+        assertFalse(dirty.drain().isProgressOnly());
+    }
+
+    public void testUrgentChanges() throws Exception {
+        final DirtyDownloads dirty = new DirtyDownloads();
+        assertTrue(dirty.hasUrgentChanges());
+        dirty.drain();
+
+        dirty.markChanged(1, true);
+        assertFalse(dirty.hasUrgentChanges());
+        dirty.markChanged(2, false);
+        assertTrue(dirty.hasUrgentChanges());
+        dirty.drain();
+        assertFalse(dirty.hasUrgentChanges());
+    }
+
+    public void testIsProgressOnlyColumns() throws Exception {
+        assertTrue(DirtyDownloads.isProgressOnly(Arrays.asList(
+                Downloads.Impl.COLUMN_CURRENT_BYTES, Constants.VERIFIED_BYTES)));
+        assertFalse(DirtyDownloads.isProgressOnly(Arrays.asList(
+                Downloads.Impl.COLUMN_CURRENT_BYTES, Downloads.Impl.COLUMN_STATUS)));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * This test exercises merging and persistence of {@link DownloadChunkMap}.
+ */
+@SmallTest
+public class DownloadChunkMapTest extends TestCase {
+
+    public void testMergeOverlappingAndAdjacent() throws Exception {
+        final DownloadChunkMap map = new DownloadChunkMap();
+        map.add(500, 600);
+        map.add(100, 200);
+        map.add(200, 300);
+        map.add(550, 700);
+        assertEquals("100-300,500-700", map.toString());
+
+        map.add(250, 550);
+        assertEquals("100-700", map.toString());
+    }
+
+    public void testIgnoresEmptyRanges() throws Exception {
+        final DownloadChunkMap map = new DownloadChunkMap();
+        map.add(0, 0);
+        map.add(10, 5);
+        assertTrue(map.isEmpty());
+    }
+
+    public void testParseRoundTrip() throws Exception {
+        final DownloadChunkMap map = DownloadChunkMap.parse("0-1024,4096-8192");
+        assertEquals("0-1024,4096-8192", map.toString());
+        assertEquals(1024, map.getContiguousEnd(0));
+        assertEquals(2048, map.getContiguousEnd(2048));
+        assertTrue(map.hasRangesAfter(1024));
+        assertFalse(map.hasRangesAfter(8192));
+    }
+
+    public void testParseMalformed() throws Exception {
+        assertTrue(DownloadChunkMap.parse(null).isEmpty());
+        assertTrue(DownloadChunkMap.parse("").isEmpty());
+        assertTrue(DownloadChunkMap.parse("0-10,garbage").isEmpty());
+    }
+
+    public void testMissingRanges() throws Exception {
+        final DownloadChunkMap map = DownloadChunkMap.parse("0-100,200-300,400-500");
+
+        final List<DownloadChunkMap.Range> missing = map.getMissingRanges(50, 1000);
+        assertEquals(3, missing.size());
+        assertEquals(100, missing.get(0).start);
+        assertEquals(200, missing.get(0).end);
+        assertEquals(300, missing.get(1).start);
+        assertEquals(400, missing.get(1).end);
+        assertEquals(500, missing.get(2).start);
+        assertEquals(1000, missing.get(2).end);
+
+        assertTrue(map.getMissingRanges(0, 100).isEmpty());
+        assertEquals(1, map.getMissingRanges(250, 450).size());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This test exercises lookups, removal and stale detection in
+ * {@link DownloadRegistry}, and measures allocations made by an update pass
+ * against the boxed maps it replaces.
+ */
+@SmallTest
+public class DownloadRegistryTest extends TestCase {
+    private static final String TAG = "DownloadRegistryTest";
+
+    private static final int[] PASS_SIZES = { 1000, 10000, 100000 };
+
+    /** Allocations allowed per registry pass, which is only the values iterator */
+    private static final int MAX_PASS_ALLOCATIONS = 1;
+
+    public void testPutGetRemove() throws Exception {
+        final DownloadRegistry<String> registry = new DownloadRegistry<>();
+        for (long id = 1; id <= 1000; id++) {
+            assertNull(registry.put(id, "d" + id));
+        }
+        assertEquals(1000, registry.size());
+        assertEquals("d500", registry.get(500));
+        assertNull(registry.get(1001));
+
+        assertEquals("d500", registry.put(500, "e500"));
+        assertEquals(1000, registry.size());
+
+        for (long id = 1; id <= 1000; id += 2) {
+            assertNotNull(registry.remove(id));
+        }
+        assertEquals(500, registry.size());
+        assertFalse(registry.containsKey(1));
+        assertEquals("d2", registry.get(2));
+        assertEquals("e500", registry.get(500));
+        assertNull(registry.remove(1));
+    }
+
+    public void testTombstonesReused() throws Exception {
+        final DownloadRegistry<String> registry = new DownloadRegistry<>();
+        for (long id = 0; id < 100000; id++) {
+            registry.put(id, "d");
+            registry.remove(id);
+        }
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.keys().length);
+    }
+
+    public void testIteratorRemove() throws Exception {
+        final DownloadRegistry<Long> registry = new DownloadRegistry<>();
+        for (long id = 0; id < 100; id++) {
+            registry.put(id, id);
+        }
+
+        final Iterator<Long> it = registry.values().iterator();
+        int seen = 0;
+        while (it.hasNext()) {
+            if (it.next() % 10 != 0) {
+                it.remove();
+            }
+            seen++;
+        }
+        assertEquals(100, seen);
+        assertEquals(10, registry.size());
+
+        final long[] keys = registry.keys();
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i * 10, keys[i]);
+        }
+    }
+
+    public void testRemoveStale() throws Exception {
+        final DownloadRegistry<String> registry = new DownloadRegistry<>();
+        registry.put(1, "a");
+        registry.put(2, "b");
+        registry.put(3, "c");
+
+        registry.nextGeneration();
+        assertTrue(registry.touch(1));
+        assertFalse(registry.touch(4));
+        registry.put(3, "c2");
+        assertTrue(registry.isStale(2));
+        assertFalse(registry.isStale(3));
+
+        final ArrayList<Long> stale = new ArrayList<>();
+        registry.removeStale(new DownloadRegistry.StaleCallback<String>() {
+            @Override
+            public void onStale(long id, String value) {
+                stale.add(id);
+                assertEquals("b", value);
+            }
+        });
+        assertEquals(1, stale.size());
+        assertEquals(2L, (long) stale.get(0));
+        assertEquals(2, registry.size());
+    }
+
+    @LargeTest
+    public void testPassAllocations() throws Exception {
+        final DownloadRegistry.StaleCallback<Object> callback =
+                new DownloadRegistry.StaleCallback<Object>() {
+                    @Override
+                    public void onStale(long id, Object value) {
+                    }
+                };
+
+        for (int size : PASS_SIZES) {
+            final Map<Long, Object> map = new HashMap<>();
+            final DownloadRegistry<Object> registry = new DownloadRegistry<>();
+            for (long id = 0; id < size; id++) {
+                map.put(id, TAG);
+                registry.put(id, TAG);
+            }
+
+            // Each pass finds every row again, then walks all values
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            final Set<Long> staleIds = new HashSet<>(map.keySet());
+            for (long id = 0; id < size; id++) {
+                if (map.get(id) != null) {
+                    staleIds.remove(id);
+                }
+            }
+            int count = 0;
+            for (Object value : map.values()) {
+                count++;
+            }
+            final int mapAllocs = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            registry.nextGeneration();
+            for (long id = 0; id < size; id++) {
+                registry.touch(id);
+            }
+            registry.removeStale(callback);
+            for (Object value : registry.values()) {
+                count++;
+            }
+            final int registryAllocs = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            assertEquals(size * 2, count);
+            assertEquals(size, registry.size());
+            Log.i(TAG, size + " downloads: boxed map " + mapAllocs + " allocations, registry "
+                    + registryAllocs + " allocations per pass");
+            assertTrue("registry pass allocated " + registryAllocs,
+                    registryAllocs <= MAX_PASS_ALLOCATIONS);
+            assertTrue(mapAllocs > registryAllocs);
+        }
+    }
+}
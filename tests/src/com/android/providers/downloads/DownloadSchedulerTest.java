@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.PRIORITY_BACKGROUND;
+import static com.android.providers.downloads.Constants.PRIORITY_PREFETCH;
+import static com.android.providers.downloads.Constants.PRIORITY_USER_VISIBLE;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This test exercises the order in which {@link DownloadScheduler} hands out
+ * queued downloads.
+ */
+@SmallTest
+public class DownloadSchedulerTest extends TestCase {
+    private FakeSystemFacade mSystemFacade;
+
+    private static class FakeDownload implements Runnable, DownloadScheduler.Prioritized {
+        int mPriority;
+        final int mUid;
+        final long mRemainingBytes;
+        final String mHost;
+
+        FakeDownload(int priority, int uid, long remainingBytes) {
+            this(priority, uid, remainingBytes, null);
+        }
+
+        FakeDownload(int priority, int uid, long remainingBytes, String host) {
+            mPriority = priority;
+            mUid = uid;
+            mRemainingBytes = remainingBytes;
+            mHost = host;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public int getPriorityClass() {
+            return mPriority;
+        }
+
+        @Override
+        public int getUid() {
+            return mUid;
+        }
+
+        @Override
+        public long getRemainingBytes() {
+            return mRemainingBytes;
+        }
+
+        @Override
+        public String getHost() {
+            return mHost;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSystemFacade = new FakeSystemFacade();
+        mSystemFacade.setUp();
+    }
+
+    private static DownloadScheduler.Task<Void> task(FakeDownload download) {
+        return new DownloadScheduler.Task<Void>(download, null);
+    }
+
+    public void testPriorityClasses() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final DownloadScheduler.Task<Void> prefetch = task(
+                new FakeDownload(PRIORITY_PREFETCH, 1, 100));
+        final DownloadScheduler.Task<Void> background = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 1, 100));
+        final DownloadScheduler.Task<Void> visible = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 100));
+        scheduler.offer(prefetch);
+        scheduler.offer(background);
+        scheduler.offer(visible);
+
+        assertSame(visible, scheduler.poll());
+        assertSame(background, scheduler.poll());
+        assertSame(prefetch, scheduler.poll());
+        assertNull(scheduler.poll());
+    }
+
+    public void testShortestFirst() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, true);
+        final DownloadScheduler.Task<Void> large = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 4L * 1024 * 1024 * 1024));
+        final DownloadScheduler.Task<Void> small = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 200 * 1024));
+        scheduler.offer(large);
+        scheduler.offer(small);
+
+        assertSame(small, scheduler.poll());
+        assertSame(large, scheduler.poll());
+    }
+
+    public void testFifoWithoutShortestFirst() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final DownloadScheduler.Task<Void> large = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 4L * 1024 * 1024 * 1024));
+        final DownloadScheduler.Task<Void> small = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 200 * 1024));
+        scheduler.offer(large);
+        scheduler.offer(small);
+
+        assertSame(large, scheduler.poll());
+    }
+
+    public void testUidFairness() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+
+        // App 1 already has a download running, so app 2 goes first
+        final DownloadScheduler.Task<Void> running = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 1, 100));
+        scheduler.onStarted(running);
+
+        final DownloadScheduler.Task<Void> first = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 1, 100));
+        final DownloadScheduler.Task<Void> second = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 2, 100));
+        scheduler.offer(first);
+        scheduler.offer(second);
+        assertSame(second, scheduler.poll());
+
+        // Once both are idle, the app served longest ago goes first
+        scheduler.onStarted(second);
+        scheduler.onFinished(running);
+        scheduler.onFinished(second);
+        final DownloadScheduler.Task<Void> third = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 2, 100));
+        scheduler.offer(third);
+        assertSame(first, scheduler.poll());
+        assertSame(third, scheduler.poll());
+    }
+
+    public void testAging() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final DownloadScheduler.Task<Void> prefetch = task(
+                new FakeDownload(PRIORITY_PREFETCH, 1, 100));
+        scheduler.offer(prefetch);
+
+        mSystemFacade.incrementTimeMillis(2 * Constants.PRIORITY_AGING_INTERVAL);
+        final DownloadScheduler.Task<Void> background = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 1, 100));
+        scheduler.offer(background);
+
+        assertSame(prefetch, scheduler.poll());
+    }
+
+    public void testReprioritizeQueued() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final FakeDownload download = new FakeDownload(PRIORITY_PREFETCH, 1, 100);
+        final DownloadScheduler.Task<Void> promoted = task(download);
+        final DownloadScheduler.Task<Void> background = task(
+                new FakeDownload(PRIORITY_BACKGROUND, 1, 100));
+        scheduler.offer(promoted);
+        scheduler.offer(background);
+
+        download.mPriority = PRIORITY_USER_VISIBLE;
+        assertSame(promoted, scheduler.poll());
+    }
+
+    public void testHostLimit() throws Exception {
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final ArrayList<DownloadScheduler.Task<Void>> running = new ArrayList<>();
+        for (int i = 0; i < Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+            final DownloadScheduler.Task<Void> task = task(
+                    new FakeDownload(PRIORITY_USER_VISIBLE, 1, 100, "example.com"));
+            scheduler.onStarted(task);
+            running.add(task);
+        }
+
+        // Busy host stays queued while others go ahead
+        final DownloadScheduler.Task<Void> busy = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 100, "example.com"));
+        final DownloadScheduler.Task<Void> other = task(
+                new FakeDownload(PRIORITY_PREFETCH, 1, 100, "example.org"));
+        scheduler.offer(busy);
+        scheduler.offer(other);
+        assertSame(other, scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(1, scheduler.size());
+
+        // Finishing one frees a connection for the queued download
+        scheduler.onFinished(running.get(0));
+        assertSame(busy, scheduler.poll(1, TimeUnit.SECONDS));
+    }
+
+    public void testHostLimitCountsOpenConnections() throws Exception {
+        // Connections opened elsewhere, such as segments or redirects
+        final String host = "connections.example.com";
+        final HostRegistry hosts = HostRegistry.getInstance();
+        for (int i = 0; i < Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+            assertEquals(0, hosts.acquire(host, 0));
+        }
+
+        final DownloadScheduler scheduler = new DownloadScheduler(mSystemFacade, false);
+        final DownloadScheduler.Task<Void> busy = task(
+                new FakeDownload(PRIORITY_USER_VISIBLE, 1, 100, host));
+        scheduler.offer(busy);
+        try {
+            assertNull(scheduler.poll());
+
+            // Closing one while waiting is noticed without any task finishing
+            final Thread closer = new Thread() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(100);
+                    hosts.release(host);
+                }
+            };
+            closer.start();
+            assertSame(busy, scheduler.poll(5, TimeUnit.SECONDS));
+            closer.join();
+        } finally {
+            for (int i = 1; i < Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+                hosts.release(host);
+            }
+        }
+    }
+}
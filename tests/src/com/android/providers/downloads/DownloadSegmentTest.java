@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises the range bookkeeping in {@link DownloadSegment}.
+ */
+@SmallTest
+public class DownloadSegmentTest extends TestCase {
+
+    public void testReserveClampsToEnd() throws Exception {
+        final DownloadSegment segment = new DownloadSegment(0, 0, 100);
+        assertEquals(64, segment.reserve(64));
+        segment.commit(64);
+        assertEquals(36, segment.reserve(64));
+        segment.commit(36);
+        assertTrue(segment.isFinished());
+        assertEquals(0, segment.reserve(64));
+    }
+
+    public void testSplitHalvesRemaining() throws Exception {
+        final DownloadSegment segment = new DownloadSegment(0, 0, 1000);
+        segment.reserve(200);
+        segment.commit(200);
+
+        final long offset = segment.findSplitOffset(100);
+        assertEquals(600, offset);
+
+        final DownloadSegment tail = segment.splitAt(1, offset, 1000);
+        assertNotNull(tail);
+        assertEquals(600, segment.getEnd());
+        assertEquals(600, tail.start);
+        assertEquals(1000, tail.getEnd());
+    }
+
+    public void testSplitTooSmall() throws Exception {
+        final DownloadSegment segment = new DownloadSegment(0, 0, 150);
+        assertEquals(-1, segment.findSplitOffset(100));
+    }
+
+    public void testSplitRejectsInFlightBytes() throws Exception {
+        final DownloadSegment segment = new DownloadSegment(0, 0, 1000);
+        final long offset = segment.findSplitOffset(100);
+
+        // Writer raced ahead past the planned split point
+        segment.reserve(800);
+        assertNull(segment.splitAt(1, offset, 1000));
+        segment.commit(800);
+        assertEquals(1000, segment.getEnd());
+    }
+
+    public void testSplitRejectsMovedEnd() throws Exception {
+        final DownloadSegment segment = new DownloadSegment(0, 0, 1000);
+        assertNotNull(segment.splitAt(1, 800, 1000));
+        assertNull(segment.splitAt(2, 400, 1000));
+    }
+}
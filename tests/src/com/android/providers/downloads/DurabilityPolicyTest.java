@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.DEFERRED_SYNC_BYTES;
+import static com.android.providers.downloads.Constants.DEFERRED_SYNC_TIME;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises when each {@link DurabilityPolicy} syncs.
+ */
+@SmallTest
+public class DurabilityPolicyTest extends TestCase {
+
+    public void testImmediatePoliciesAlwaysSync() throws Exception {
+        assertTrue(DurabilityPolicy.create(DurabilityPolicy.TYPE_FSYNC).shouldSync(0, 0));
+        assertTrue(DurabilityPolicy.create(DurabilityPolicy.TYPE_FDATASYNC).shouldSync(0, 0));
+    }
+
+    public void testDeferredWaitsForThreshold() throws Exception {
+        final DurabilityPolicy policy = DurabilityPolicy.create(DurabilityPolicy.TYPE_DEFERRED);
+        assertFalse(policy.shouldSync(65536, 2000));
+        assertFalse(policy.shouldSync(DEFERRED_SYNC_BYTES - 1, DEFERRED_SYNC_TIME - 1));
+        assertTrue(policy.shouldSync(DEFERRED_SYNC_BYTES, 0));
+        assertTrue(policy.shouldSync(0, DEFERRED_SYNC_TIME));
+    }
+
+    public void testUnknownPolicy() throws Exception {
+        try {
+            DurabilityPolicy.create(-1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
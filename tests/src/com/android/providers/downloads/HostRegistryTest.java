@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises the per-host circuit breaker in {@link HostRegistry}.
+ */
+@SmallTest
+public class HostRegistryTest extends TestCase {
+    private static final String HOST = "example.com";
+
+    public void testClosedCircuitAllowsAll() throws Exception {
+        final HostRegistry hosts = new HostRegistry();
+        for (int i = 0; i < 2 * Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+            assertEquals(0, hosts.acquire(HOST, 0));
+        }
+
+        // Hosts are matched regardless of case, and others aren't affected
+        hosts.recordFailure("EXAMPLE.com", Constants.HOST_CIRCUIT_OPEN_TIME, 0);
+        assertEquals(Constants.HOST_CIRCUIT_OPEN_TIME, hosts.acquire(HOST, 0));
+        assertEquals(0, hosts.acquire("example.org", 0));
+    }
+
+    public void testExtraConnectionsCapped() throws Exception {
+        final HostRegistry hosts = new HostRegistry();
+        assertEquals(0, hosts.acquire(HOST, 0));
+        for (int i = 1; i < Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+            assertTrue(hosts.tryAcquireExtra("EXAMPLE.com"));
+        }
+        assertEquals(Constants.MAX_CONNECTIONS_PER_HOST, hosts.getActive(HOST));
+        assertFalse(hosts.tryAcquireExtra(HOST));
+
+        // Released extras make room again, but not while the circuit is open
+        hosts.release(HOST);
+        assertTrue(hosts.tryAcquireExtra(HOST));
+        hosts.release(HOST);
+        hosts.recordFailure(HOST, Constants.HOST_CIRCUIT_OPEN_TIME, 0);
+        assertFalse(hosts.tryAcquireExtra(HOST));
+    }
+
+    public void testConsecutiveFailuresOpenCircuit() throws Exception {
+        final HostRegistry hosts = new HostRegistry();
+        for (int i = 0; i < Constants.HOST_CIRCUIT_FAILURES - 1; i++) {
+            assertEquals(0, hosts.acquire(HOST, 0));
+            hosts.recordFailure(HOST, 0, 0);
+            hosts.release(HOST);
+        }
+
+        // A success in between resets the count
+        assertEquals(0, hosts.acquire(HOST, 0));
+        hosts.recordSuccess(HOST);
+        hosts.release(HOST);
+        for (int i = 0; i < Constants.HOST_CIRCUIT_FAILURES - 1; i++) {
+            assertEquals(0, hosts.acquire(HOST, 0));
+            hosts.recordFailure(HOST, 0, 0);
+            hosts.release(HOST);
+        }
+        assertEquals(0, hosts.acquire(HOST, 0));
+
+        hosts.recordFailure(HOST, 0, 1000);
+        hosts.release(HOST);
+        assertEquals(Constants.HOST_CIRCUIT_OPEN_TIME - 500, hosts.acquire(HOST, 1500));
+    }
+
+    public void testRetryAfterOpensCircuit() throws Exception {
+        final HostRegistry hosts = new HostRegistry();
+        final long retryAfter = 10 * Constants.HOST_CIRCUIT_OPEN_TIME;
+        assertEquals(0, hosts.acquire(HOST, 0));
+        assertEquals(0, hosts.acquire(HOST, 0));
+
+        hosts.recordFailure(HOST, retryAfter, 0);
+        hosts.release(HOST);
+
+        // Every download to the host waits out the Retry-After
+        assertEquals(retryAfter - 100, hosts.acquire(HOST, 100));
+        assertEquals(retryAfter - 200, hosts.acquire(HOST, 200));
+    }
+
+    public void testProbe() throws Exception {
+        final HostRegistry hosts = new HostRegistry();
+        final long open = Constants.HOST_CIRCUIT_OPEN_TIME;
+        assertEquals(0, hosts.acquire(HOST, 0));
+        hosts.recordFailure(HOST, open, 0);
+        hosts.release(HOST);
+
+        // Once open time passes, only a single probe goes through
+        assertEquals(0, hosts.acquire(HOST, open));
+        assertEquals(Constants.HOST_PROBE_WAIT, hosts.acquire(HOST, open));
+
+        // Failed probe opens the circuit again
+        hosts.recordFailure(HOST, 0, open);
+        hosts.release(HOST);
+        assertEquals(open, hosts.acquire(HOST, open));
+
+        // Successful probe releases the rest
+        assertEquals(0, hosts.acquire(HOST, 2 * open));
+        hosts.recordSuccess(HOST);
+        for (int i = 1; i < Constants.MAX_CONNECTIONS_PER_HOST; i++) {
+            assertEquals(0, hosts.acquire(HOST, 2 * open));
+        }
+    }
+}
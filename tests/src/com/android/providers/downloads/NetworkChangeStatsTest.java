@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises waiting for network changes in
+ * {@link NetworkChangeStats}.
+ */
+@SmallTest
+public class NetworkChangeStatsTest extends TestCase {
+
+    public void testAwaitTimesOut() throws Exception {
+        final NetworkChangeStats stats = new NetworkChangeStats();
+        final long start = SystemClock.elapsedRealtime();
+        assertFalse(stats.awaitChange(stats.getGeneration(), 50));
+        assertTrue(SystemClock.elapsedRealtime() - start >= 50);
+    }
+
+    public void testAwaitMissedChange() throws Exception {
+        final NetworkChangeStats stats = new NetworkChangeStats();
+        final int generation = stats.getGeneration();
+        stats.onNetworkChanged(0);
+
+        // Change before waiting still counts
+        assertTrue(stats.awaitChange(generation, 10000));
+    }
+
+    public void testAwaitWokenByChange() throws Exception {
+        final NetworkChangeStats stats = new NetworkChangeStats();
+        final int generation = stats.getGeneration();
+        final Thread changer = new Thread() {
+            @Override
+            public void run() {
+                SystemClock.sleep(50);
+                stats.onNetworkChanged(SystemClock.elapsedRealtime());
+            }
+        };
+        changer.start();
+
+        final long start = SystemClock.elapsedRealtime();
+        assertTrue(stats.awaitChange(generation, 10000));
+        assertTrue(SystemClock.elapsedRealtime() - start < 10000);
+        changer.join();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.PREALLOCATE_EXTENT_MAX;
+import static com.android.providers.downloads.Constants.PREALLOCATE_EXTENT_MIN;
+import static com.android.providers.downloads.Preallocator.getExtentEnd;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises extent sizing in {@link Preallocator}.
+ */
+@SmallTest
+public class PreallocatorTest extends TestCase {
+
+    public void testStreamingExtentsGrow() throws Exception {
+        long end = getExtentEnd(0, 8192, -1);
+        assertEquals(PREALLOCATE_EXTENT_MIN, end);
+
+        end = getExtentEnd(end, end + 8192, -1);
+        assertEquals(2 * PREALLOCATE_EXTENT_MIN, end);
+
+        end = getExtentEnd(end, end + 8192, -1);
+        assertEquals(4 * PREALLOCATE_EXTENT_MIN, end);
+    }
+
+    public void testStreamingExtentsBounded() throws Exception {
+        final long allocated = 10 * PREALLOCATE_EXTENT_MAX;
+        assertEquals(allocated + PREALLOCATE_EXTENT_MAX,
+                getExtentEnd(allocated, allocated + 1, -1));
+    }
+
+    public void testLargeWriteCoveredByExtent() throws Exception {
+        final long wanted = 3 * PREALLOCATE_EXTENT_MIN;
+        assertEquals(wanted, getExtentEnd(0, wanted, -1));
+    }
+
+    public void testKnownLengthNotExceeded() throws Exception {
+        final long total = PREALLOCATE_EXTENT_MIN + 100;
+        assertEquals(PREALLOCATE_EXTENT_MIN, getExtentEnd(0, 8192, total));
+        assertEquals(total, getExtentEnd(PREALLOCATE_EXTENT_MIN, PREALLOCATE_EXTENT_MIN + 1, total));
+        assertEquals(total, getExtentEnd(0, total, total));
+    }
+}
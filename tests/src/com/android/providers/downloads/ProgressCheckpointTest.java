@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Downloads;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * This test exercises progress checkpoints written directly through
+ * {@link DownloadProvider#writeCheckpoints}, and measures them against the
+ * same writes made through {@link android.content.ContentResolver}.
+ */
+@LargeTest
+public class ProgressCheckpointTest extends AbstractDownloadProviderFunctionalTest {
+    private static final int DOWNLOADS = 10;
+    private static final int ROUNDS = 50;
+
+    private DownloadProvider mProvider;
+    private ContentProviderClient mClient;
+    private final long[] mIds = new long[DOWNLOADS];
+
+    public ProgressCheckpointTest() {
+        super(new FakeSystemFacade());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mClient = mResolver.acquireContentProviderClient(Downloads.Impl.AUTHORITY);
+        mProvider = (DownloadProvider) mClient.getLocalContentProvider();
+
+        for (int i = 0; i < DOWNLOADS; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(Downloads.Impl.COLUMN_URI, "http://localhost/" + i);
+            values.put(Downloads.Impl.COLUMN_DESTINATION,
+                    Downloads.Impl.DESTINATION_CACHE_PARTITION);
+            mIds[i] = ContentUris.parseId(mResolver.insert(Downloads.Impl.CONTENT_URI, values));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.release();
+        super.tearDown();
+    }
+
+    private ProgressCommitter.Checkpoint buildCheckpoint(int index, long currentBytes) {
+        final Uri uri = ContentUris.withAppendedId(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mIds[index]);
+        return new ProgressCommitter.Checkpoint(mIds[index], uri,
+                currentBytes, 1024 * 1024, "\"etag\"", null, currentBytes,
+                mSystemFacade.currentTimeMillis());
+    }
+
+    private long getCurrentBytes(int index) {
+        final Cursor cursor = mResolver.query(
+                ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mIds[index]),
+                new String[] { Downloads.Impl.COLUMN_CURRENT_BYTES }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testWritesAndNotifies() throws Exception {
+        final ArrayList<ProgressCommitter.Checkpoint> checkpoints = new ArrayList<>();
+        for (int i = 0; i < DOWNLOADS; i++) {
+            checkpoints.add(buildCheckpoint(i, 1000 + i));
+        }
+
+        mResolver.resetNotified();
+        final int[] counts = mProvider.writeCheckpoints(checkpoints);
+        assertTrue(mResolver.mNotifyWasCalled);
+
+        for (int i = 0; i < DOWNLOADS; i++) {
+            assertEquals(1, counts[i]);
+            assertEquals(1000 + i, getCurrentBytes(i));
+        }
+    }
+
+    public void testSkipsDeleted() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_DELETED, 1);
+        mResolver.update(ContentUris.withAppendedId(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mIds[0]), values, null, null);
+
+        final ArrayList<ProgressCommitter.Checkpoint> checkpoints = new ArrayList<>();
+        checkpoints.add(buildCheckpoint(0, 2000));
+        checkpoints.add(buildCheckpoint(1, 2000));
+
+        final int[] counts = mProvider.writeCheckpoints(checkpoints);
+        assertEquals(0, counts[0]);
+        assertEquals(1, counts[1]);
+    }
+
+    public void testCompareWithResolver() throws Exception {
+        final String where = Downloads.Impl.COLUMN_DELETED + " == '0'";
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < DOWNLOADS; i++) {
+                final ProgressCommitter.Checkpoint checkpoint = buildCheckpoint(i, round);
+                mResolver.update(checkpoint.uri, checkpoint.toContentValues(), where, null);
+            }
+        }
+        final long resolverNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            final ArrayList<ProgressCommitter.Checkpoint> checkpoints = new ArrayList<>();
+            for (int i = 0; i < DOWNLOADS; i++) {
+                checkpoints.add(buildCheckpoint(i, round));
+            }
+            mProvider.writeCheckpoints(checkpoints);
+        }
+        final long directNanos = System.nanoTime() - start;
+
+        final int writes = ROUNDS * DOWNLOADS;
+        Log.i(LOG_TAG, "resolver: " + (resolverNanos / writes) + "ns per checkpoint, direct: "
+                + (directNanos / writes) + "ns per checkpoint");
+        assertTrue("direct checkpoints slower than resolver updates",
+                directNanos < resolverNanos);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This test exercises ordering, rescheduling and cancellation in
+ * {@link RetryScheduler}.
+ */
+@SmallTest
+public class RetrySchedulerTest extends TestCase {
+
+    public void testEmpty() throws Exception {
+        final RetryScheduler retries = new RetryScheduler();
+        assertTrue(retries.isEmpty());
+        assertEquals(Long.MAX_VALUE, retries.getNextTime());
+        assertEquals(0, retries.pollDue(Long.MAX_VALUE).length);
+    }
+
+    public void testPollDue() throws Exception {
+        final RetryScheduler retries = new RetryScheduler();
+        retries.schedule(1, 300);
+        retries.schedule(2, 100);
+        retries.schedule(3, 200);
+        retries.schedule(4, 400);
+        assertEquals(100, retries.getNextTime());
+
+        assertTrue(Arrays.equals(new long[] { 2, 3 }, retries.pollDue(250)));
+        assertEquals(2, retries.size());
+        assertFalse(retries.contains(2));
+        assertEquals(300, retries.getNextTime());
+        assertEquals(0, retries.pollDue(299).length);
+    }
+
+    public void testReschedule() throws Exception {
+        final RetryScheduler retries = new RetryScheduler();
+        retries.schedule(1, 100);
+        retries.schedule(2, 200);
+        retries.schedule(3, 300);
+
+        retries.schedule(1, 400);
+        retries.schedule(3, 50);
+        assertEquals(3, retries.size());
+        assertTrue(Arrays.equals(new long[] { 3, 2, 1 }, retries.pollDue(1000)));
+    }
+
+    public void testCancel() throws Exception {
+        final RetryScheduler retries = new RetryScheduler();
+        retries.schedule(1, 100);
+        retries.schedule(2, 200);
+        retries.schedule(3, 300);
+
+        retries.cancel(1);
+        retries.cancel(42);
+        assertEquals(200, retries.getNextTime());
+        assertTrue(Arrays.equals(new long[] { 2, 3 }, retries.pollDue(1000)));
+        assertTrue(retries.isEmpty());
+    }
+
+    public void testRandomOrder() throws Exception {
+        final RetryScheduler retries = new RetryScheduler();
+        final Random random = new Random(42);
+        final long[] times = new long[1000];
+        for (int id = 0; id < times.length; id++) {
+            times[id] = random.nextInt(100000);
+            retries.schedule(id, times[id]);
+        }
+        for (int id = 0; id < times.length; id += 3) {
+            retries.cancel(id);
+            times[id] = -1;
+        }
+
+        long last = -1;
+        int count = 0;
+        for (long id : retries.pollDue(Long.MAX_VALUE)) {
+            assertTrue(times[(int) id] >= last);
+            last = times[(int) id];
+            count++;
+        }
+        assertEquals(666, count);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.Downloads;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This test exercises reading back only changed downloads during an update
+ * pass, and measures the cost of doing so against reading back every
+ * download as the table grows.
+ */
+@LargeTest
+public class UpdatePassTest extends AbstractDownloadProviderFunctionalTest {
+    private static final int[] TABLE_SIZES = { 100, 1000, 3000 };
+    private static final int CHANGED = 10;
+
+    private final ArrayList<Long> mIds = new ArrayList<>();
+
+    public UpdatePassTest() {
+        super(new FakeSystemFacade());
+    }
+
+    private void insertDownloads(int count) {
+        while (mIds.size() < count) {
+            final ContentValues values = new ContentValues();
+            values.put(Downloads.Impl.COLUMN_URI, "http://localhost/" + mIds.size());
+            values.put(Downloads.Impl.COLUMN_DESTINATION,
+                    Downloads.Impl.DESTINATION_CACHE_PARTITION);
+            mIds.add(ContentUris.parseId(mResolver.insert(Downloads.Impl.CONTENT_URI, values)));
+        }
+    }
+
+    /**
+     * Read back the given downloads, or all of them when null, the same way
+     * an update pass does.
+     */
+    private int readDownloads(Set<Long> ids) {
+        final Cursor cursor = DownloadService.queryDownloads(mResolver, ids);
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+            int count = 0;
+            while (cursor.moveToNext()) {
+                reader.newDownloadInfo(mTestContext, mSystemFacade, null, null);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testReadsOnlyChanged() throws Exception {
+        insertDownloads(20);
+
+        final Set<Long> ids = new HashSet<>();
+        ids.add(mIds.get(3));
+        ids.add(mIds.get(7));
+        assertEquals(2, readDownloads(ids));
+        assertEquals(20, readDownloads(null));
+    }
+
+    public void testStartDoesNotLoadHeaders() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, "http://localhost/headers");
+        values.put(Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.DESTINATION_CACHE_PARTITION);
+        values.put(Downloads.Impl.RequestHeaders.INSERT_KEY_PREFIX + "0",
+                "Connection: keep-alive");
+        final long id = ContentUris.parseId(mResolver.insert(Downloads.Impl.CONTENT_URI, values));
+
+        // Collect tasks without running them, as queued behind other downloads
+        final ArrayList<Runnable> submitted = new ArrayList<>();
+        final ExecutorService executor = new AbstractExecutorService() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.add(command);
+            }
+
+            @Override
+            public void shutdown() {
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                return submitted;
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return false;
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return false;
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) {
+                return true;
+            }
+        };
+
+        final Cursor cursor = DownloadService.queryDownloads(mResolver, Collections.singleton(id));
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+            assertTrue(cursor.moveToNext());
+            final DownloadInfo info = reader.newDownloadInfo(
+                    mTestContext, mSystemFacade, null, null);
+            assertTrue(info.startDownloadIfReady(executor));
+            assertEquals(1, submitted.size());
+
+            // The update pass must not query headers for each download it starts
+            assertFalse(info.isHeadersLoaded());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testRecordsChanges() throws Exception {
+        insertDownloads(2);
+        DirtyDownloads.getInstance().drain();
+
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, 42);
+        mResolver.update(ContentUris.withAppendedId(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mIds.get(1)), values, null, null);
+
+        DirtyDownloads.Changes changes = DirtyDownloads.getInstance().drain();
+        assertTrue(changes.isProgressOnly());
+        assertEquals(1, changes.getIds().size());
+        assertTrue(changes.getIds().contains(mIds.get(1)));
+
+        values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_PAUSED);
+        mResolver.update(ContentUris.withAppendedId(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, mIds.get(0)), values, null, null);
+
+        changes = DirtyDownloads.getInstance().drain();
+        assertFalse(changes.isProgressOnly());
+        assertTrue(changes.getIds().contains(mIds.get(0)));
+    }
+
+    private void setStatus(long id, int status) {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_STATUS, status);
+        mResolver.update(ContentUris.withAppendedId(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id), values, null, null);
+    }
+
+    private void partitionDownloads(StatusPartitions partitions) {
+        final Cursor cursor = DownloadService.queryDownloads(mResolver, null);
+        try {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(cursor);
+            while (cursor.moveToNext()) {
+                partitions.update(reader.newDownloadInfo(mTestContext, mSystemFacade, null, null));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testPartitionsByStatus() throws Exception {
+        insertDownloads(3);
+        setStatus(mIds.get(1), Downloads.Impl.STATUS_WAITING_FOR_NETWORK);
+        setStatus(mIds.get(2), Downloads.Impl.STATUS_QUEUED_FOR_WIFI);
+
+        final StatusPartitions partitions = new StatusPartitions();
+        partitionDownloads(partitions);
+        assertEquals(1, partitions.size(StatusPartitions.PARTITION_RUNNABLE));
+        assertEquals(1, partitions.size(StatusPartitions.PARTITION_WAITING_FOR_NETWORK));
+        assertEquals(1, partitions.size(StatusPartitions.PARTITION_QUEUED_FOR_WIFI));
+
+        // Downloads move between partitions as their status changes
+        setStatus(mIds.get(1), Downloads.Impl.STATUS_SUCCESS);
+        setStatus(mIds.get(2), Downloads.Impl.STATUS_WAITING_FOR_NETWORK);
+        partitionDownloads(partitions);
+        assertEquals(1, partitions.size(StatusPartitions.PARTITION_RUNNABLE));
+        assertEquals(1, partitions.size(StatusPartitions.PARTITION_WAITING_FOR_NETWORK));
+        assertEquals(0, partitions.size(StatusPartitions.PARTITION_QUEUED_FOR_WIFI));
+        assertEquals((long) mIds.get(2), partitions.get(
+                StatusPartitions.PARTITION_WAITING_FOR_NETWORK).iterator().next().mId);
+    }
+
+    public void testLatencyAgainstTableSize() throws Exception {
+        for (int size : TABLE_SIZES) {
+            insertDownloads(size);
+
+            final Set<Long> changed = new HashSet<>();
+            for (int i = 0; i < CHANGED; i++) {
+                changed.add(mIds.get(i * (size / CHANGED)));
+            }
+
+            long start = System.nanoTime();
+            assertEquals(size, readDownloads(null));
+            final long fullMicros = (System.nanoTime() - start) / 1000;
+
+            start = System.nanoTime();
+            assertEquals(CHANGED, readDownloads(changed));
+            final long incrementalMicros = (System.nanoTime() - start) / 1000;
+
+            Log.i(LOG_TAG, size + " downloads: full pass " + fullMicros + "us, " + CHANGED
+                    + " changed " + incrementalMicros + "us");
+            assertTrue("reading " + CHANGED + " changed downloads no faster than all " + size,
+                    incrementalMicros < fullMicros);
+        }
+    }
+}
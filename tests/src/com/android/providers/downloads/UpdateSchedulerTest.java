@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * This test exercises coalescing of update passes in {@link UpdateScheduler}.
+ */
+@SmallTest
+public class UpdateSchedulerTest extends TestCase {
+    private static final long INTERVAL = 1000;
+
+    public void testFirstRequestImmediate() throws Exception {
+        final UpdateScheduler scheduler = new UpdateScheduler(INTERVAL);
+        assertEquals(0, scheduler.request(false, 5000));
+    }
+
+    public void testStormCoalesced() throws Exception {
+        final UpdateScheduler scheduler = new UpdateScheduler(INTERVAL);
+        scheduler.onPassStarted(5000);
+
+        assertEquals(900, scheduler.request(false, 5100));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, scheduler.request(false, 5100 + i));
+        }
+        scheduler.onPassStarted(6000);
+
+        assertEquals(101, scheduler.getRequestedCount());
+        assertEquals(2, scheduler.getExecutedCount());
+        assertEquals(100, scheduler.getCoalescedCount());
+    }
+
+    public void testUrgentBypassesInterval() throws Exception {
+        final UpdateScheduler scheduler = new UpdateScheduler(INTERVAL);
+        scheduler.onPassStarted(5000);
+
+        assertEquals(900, scheduler.request(false, 5100));
+        assertEquals(0, scheduler.request(true, 5200));
+        assertEquals(-1, scheduler.request(false, 5200));
+        assertEquals(2, scheduler.getCoalescedCount());
+    }
+
+    public void testIdleRequestImmediate() throws Exception {
+        final UpdateScheduler scheduler = new UpdateScheduler(INTERVAL);
+        scheduler.onPassStarted(5000);
+        assertEquals(0, scheduler.request(false, 7000));
+    }
+}